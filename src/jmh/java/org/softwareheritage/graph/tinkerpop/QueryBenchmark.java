@@ -0,0 +1,109 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the named queries, on both backends.
+ * <p>
+ * Each invocation runs the query for the next start id of the sample, round-robin. Run with e.g.
+ * {@code java -jar target/benchmarks.jar QueryBenchmark -p graphPath=<graph> -prof gc -rf json -rff results.json}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xss64m"})
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    @Param({"src/main/resources/example/example"})
+    public String graphPath;
+
+    /**
+     * A file with one start id per line. If empty, samples {@link #samples} random nodes of the query's start type.
+     */
+    @Param({""})
+    public String startIds;
+
+    @Param({"100"})
+    public int samples;
+
+    @Param({"0"})
+    public long seed;
+
+    @Param({"100000"})
+    public int vcache;
+
+    @Param({"100000"})
+    public int ecache;
+
+    @Param({"gremlin", "native"})
+    public String backend;
+
+    /**
+     * The named queries with both backends. Queries without a native implementation, such as
+     * {@code snapshotRevisionsWithBranches}, can be run with {@code -p backend=gremlin -p query=<name>}.
+     */
+    @Param({"leaves", "containingRevisions", "earliestContainingRevisions", "originOfRevision",
+            "revisionsEarlierThan", "revisionContentPaths", "recursiveContentPathsWithPermissions",
+            "snapshotRevisions"})
+    public String query;
+
+    NamedQueries.NamedQuery namedQuery;
+    NamedQueries.Backend queryBackend;
+    QuerySession.Factory sessionFactory;
+    long[] ids;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        namedQuery = NamedQueries.get(query);
+        queryBackend = NamedQueries.Backend.valueOf(backend.toUpperCase());
+        if (queryBackend == NamedQueries.Backend.NATIVE && !namedQuery.hasNative()) {
+            throw new IllegalStateException("Query " + query + " has no native implementation");
+        }
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(graphPath);
+        graph.loadLabelNames();
+        graph.loadAuthorTimestamps();
+        sessionFactory = new QuerySession.Factory(graph, graphPath,
+                new FilenameCache(graph, SwhProperties.DEFAULT_FILENAME_CACHE_SIZE), null, vcache, ecache);
+        ids = startIds.isEmpty()
+                ? new StartPointSampler(graph, seed).sample(namedQuery.getStartType(), samples)
+                : StartPointSampler.load(Path.of(startIds));
+        if (ids.length == 0) {
+            throw new IllegalStateException("No start ids for query " + query);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        QuerySession session;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(QueryBenchmark benchmark) {
+            session = benchmark.sessionFactory.open();
+        }
+    }
+
+    @Benchmark
+    public void run(Worker worker, Blackhole bh) {
+        long id = ids[worker.next];
+        worker.next = (worker.next + 1) % ids.length;
+        Iterator<?> it = worker.session.run(namedQuery, queryBackend, id, namedQuery.getDefaultArgument());
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+}
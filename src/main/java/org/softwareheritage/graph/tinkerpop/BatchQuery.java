@@ -0,0 +1,341 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import com.martiansoftware.jsap.*;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Runs a named query for many start nodes in one pass.
+ * <p>
+ * Start ids are read lazily and processed in parallel chunks. Each worker thread keeps one {@link QuerySession} for
+ * the whole batch, so the vertex/edge caches, filename cache and visited sets are shared across start ids. Results
+ * are streamed to a {@link ResultConsumer} as {@code (startId, result)} records as soon as they are produced, so the
+ * records of different start ids may interleave.
+ */
+public class BatchQuery implements AutoCloseable {
+
+    private static final String EXAMPLE = "src/main/resources/example/example";
+    /**
+     * The number of lines read and resolved at once by {@link #readIds(BufferedReader, SwhidIndex)}.
+     */
+    public static final int RESOLVE_BATCH = 4096;
+
+    private final ThreadLocal<QuerySession> sessions;
+    private final ExecutorService workers;
+    private final int threads;
+    private final int chunkSize;
+
+    public static void main(String[] args) throws IOException, JSAPException {
+        SimpleJSAP jsap = new SimpleJSAP(BatchQuery.class.getName(),
+                "Runs a named query for a list of start ids.",
+                new Parameter[]{
+                        new FlaggedOption("graphPath", JSAP.STRING_PARSER, EXAMPLE, JSAP.NOT_REQUIRED, 'g', "path",
+                                "The basename of the compressed graph."),
+                        new FlaggedOption("query", JSAP.STRING_PARSER, null, JSAP.REQUIRED, 'q', "query",
+                                "The query name, one of: " + NamedQueries.names()),
+                        new FlaggedOption("argument", JSAP.LONG_PARSER, "1", JSAP.NOT_REQUIRED, 'a', "argument",
+                                "The extra argument of the query, if it takes one."),
+                        new FlaggedOption("ids", JSAP.STRING_PARSER, "-", JSAP.NOT_REQUIRED, 'i', "ids",
+                                "The file with one start id or SWHID per line, - for standard input."),
+                        new FlaggedOption("output", JSAP.STRING_PARSER, "-", JSAP.NOT_REQUIRED, 'o', "output",
+                                "The output file, - for standard output."),
+                        new FlaggedOption("backend", JSAP.STRING_PARSER, "native", JSAP.NOT_REQUIRED, 'b', "backend",
+                                "The backend: gremlin | native."),
+                        new FlaggedOption("threads", JSAP.INTEGER_PARSER,
+                                String.valueOf(Runtime.getRuntime().availableProcessors()), JSAP.NOT_REQUIRED, 't',
+                                "threads", "The number of worker threads."),
+                        new FlaggedOption("chunk", JSAP.INTEGER_PARSER, "1000", JSAP.NOT_REQUIRED, 'c', "chunk",
+                                "The number of start ids per chunk."),
+                        new FlaggedOption("subtreeCache", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 's',
+                                "subtree-cache", "The size in MiB of the cache of directory listings shared by the "
+                                + "native recursiveContentPathsWithPermissions, 0 to disable it."),
+                        new Switch("monotonicHistory", JSAP.NO_SHORTFLAG, "assume-monotonic-history",
+                                "Makes the native earliestContainingRevisions stop climbing above revisions which "
+                                + "cannot be among the earliest ones, assuming revisions are never older than their "
+                                + "parents. Faster, but may miss revisions."),
+                        new FlaggedOption("messageCache", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED,
+                                JSAP.NO_SHORTFLAG, "message-cache",
+                                "The number of decoded messages to cache, 0 to disable the cache."),
+                        new FlaggedOption("ecache", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'e', "ecache",
+                                "The size of edge cache."),
+                        new FlaggedOption("vcache", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'v', "vcache",
+                                "The size of vertex cache.")});
+
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(1);
+        }
+
+        NamedQueries.NamedQuery query = NamedQueries.get(config.getString("query"));
+        if (query == null) {
+            System.err.println("Unknown query name: " + config.getString("query"));
+            System.exit(1);
+        }
+        NamedQueries.Backend backend = NamedQueries.Backend.valueOf(config.getString("backend").toUpperCase());
+        if (backend == NamedQueries.Backend.NATIVE && !query.hasNative()) {
+            System.err.println("Query " + query.getName() + " has no native implementation");
+            System.exit(1);
+        }
+
+        String path = config.getString("graphPath");
+        System.err.println("Loading graph...");
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
+        graph.loadLabelNames();
+        graph.loadAuthorTimestamps();
+        FilenameCache filenames = new FilenameCache(graph, SwhProperties.DEFAULT_FILENAME_CACHE_SIZE);
+
+        String ids = config.getString("ids");
+        String output = config.getString("output");
+        SubtreeCache subtrees = config.getInt("subtreeCache") > 0
+                ? new SubtreeCache(config.getInt("subtreeCache") * (1L << 20), SubtreeCache.DEFAULT_MIN_ENTRIES)
+                : null;
+        OriginIndex origins = OriginIndex.open(path, graph.numNodes());
+        SwhidIndex swhids = SwhidIndex.open(path);
+        try (QuerySession.Factory sessionFactory = new QuerySession.Factory(graph, path, filenames, null,
+                config.getInt("vcache"), config.getInt("ecache")).withSubtreeCache(subtrees)
+                .withOriginIndex(origins).withNodeTypeIndex(NodeTypeIndex.load(graph))
+                .withTimestampIndex(TimestampIndex.open(path, graph.numNodes()))
+                .withMonotonicHistory(config.getBoolean("monotonicHistory"))
+                .withMessageCache(config.getInt("messageCache"));
+             BufferedReader in = ids.equals("-")
+                     ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                     : Files.newBufferedReader(Path.of(ids));
+             Writer out = new BufferedWriter(output.equals("-")
+                     ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                     : Files.newBufferedWriter(Path.of(output)));
+             // declared last, so that its workers are stopped before the writer and the sessions are closed
+             BatchQuery batch = new BatchQuery(sessionFactory, config.getInt("threads"), config.getInt("chunk"))) {
+            long millis = Utils.time(() -> {
+                try {
+                    batch.run(readIds(in, swhids), query, backend, config.getLong("argument"), (startId, result) -> {
+                        out.write(Long.toString(startId));
+                        out.write('\t');
+                        out.write(String.valueOf(result));
+                        out.write('\n');
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, false);
+            if (Thread.currentThread().isInterrupted()) {
+                System.err.printf("Interrupted after: %.2fs%n", 1.0 * millis / 1000);
+                return;
+            }
+            System.err.printf("Finished in: %.2fs%n", 1.0 * millis / 1000);
+            if (subtrees != null) {
+                System.err.println(subtrees);
+            }
+        }
+    }
+
+    /**
+     * @param sessionFactory the factory of the per-worker sessions
+     * @param threads        the number of worker threads
+     * @param chunkSize      the number of start ids processed by a worker at once
+     */
+    public BatchQuery(QuerySession.Factory sessionFactory, int threads, int chunkSize) {
+        this.sessions = sessionFactory.perThread();
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Runs the query for every start id, blocking until all results are delivered.
+     * <p>
+     * At most {@code 2 * threads} chunks are in flight, so start ids are consumed as fast as they are processed.
+     * Results are handed to the consumer as they are produced, so the results of different start ids may interleave.
+     * The consumer is never called concurrently. If a chunk fails or the thread is interrupted, the pending chunks are
+     * cancelled; chunks already running may still call the consumer until {@link #close()} returns.
+     */
+    public void run(LongIterator ids, NamedQueries.NamedQuery query, NamedQueries.Backend backend, long argument,
+                    ResultConsumer consumer) throws IOException, InterruptedException {
+        Semaphore inFlight = new Semaphore(2 * threads);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(workers);
+        Set<Future<Void>> pending = new HashSet<>();
+        boolean done = false;
+        try {
+            while (ids.hasNext()) {
+                LongArrayList chunk = new LongArrayList(chunkSize);
+                while (ids.hasNext() && chunk.size() < chunkSize) {
+                    chunk.add(ids.nextLong());
+                }
+                inFlight.acquire();
+                pending.add(completion.submit(() -> {
+                    try {
+                        runChunk(chunk, query, backend, argument, consumer);
+                        return null;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+                drainCompleted(completion, pending);
+            }
+            while (!pending.isEmpty()) {
+                Future<Void> future = completion.take();
+                pending.remove(future);
+                future.get();
+            }
+            done = true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (!done) {
+                for (Future<Void> future : pending) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the query for every start id of the array.
+     */
+    public void run(long[] ids, NamedQueries.NamedQuery query, NamedQueries.Backend backend, long argument,
+                    ResultConsumer consumer) throws IOException, InterruptedException {
+        run(LongArrayList.wrap(ids).iterator(), query, backend, argument, consumer);
+    }
+
+    private static void drainCompleted(CompletionService<Void> completion, Set<Future<Void>> pending)
+            throws ExecutionException, InterruptedException {
+        Future<Void> future;
+        while ((future = completion.poll()) != null) {
+            pending.remove(future);
+            future.get();
+        }
+    }
+
+    private void runChunk(LongArrayList chunk, NamedQueries.NamedQuery query, NamedQueries.Backend backend,
+                          long argument, ResultConsumer consumer) throws IOException, InterruptedException {
+        QuerySession session = sessions.get();
+        for (int i = 0; i < chunk.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            long id = chunk.getLong(i);
+            Iterator<?> it = session.run(query, backend, id, argument);
+            // results are computed outside of the lock, so that lazy iterators run in parallel
+            while (it.hasNext()) {
+                Object result = it.next();
+                synchronized (consumer) {
+                    consumer.accept(id, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one start id per line, skipping blank lines.
+     */
+    public static LongIterator readIds(BufferedReader reader) {
+        return readIds(reader, null);
+    }
+
+    /**
+     * Reads one start node per line, as a node id or, with {@code swhids}, as a SWHID, skipping blank lines. SWHIDs
+     * are resolved by batches of {@link #RESOLVE_BATCH} lines; unknown SWHIDs are reported on standard error and
+     * skipped.
+     */
+    public static LongIterator readIds(BufferedReader reader, SwhidIndex swhids) {
+        return new LongIterator() {
+            private final LongArrayList batch = new LongArrayList();
+            private int position;
+            private boolean eof;
+
+            private void fill() {
+                batch.clear();
+                position = 0;
+                List<String> lines = new ArrayList<>();
+                try {
+                    while (lines.size() < RESOLVE_BATCH) {
+                        String line = reader.readLine();
+                        if (line == null) {
+                            eof = true;
+                            break;
+                        }
+                        if (!line.isBlank()) {
+                            lines.add(line.strip());
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                List<String> swhidLines = new ArrayList<>();
+                for (String line : lines) {
+                    if (swhids != null && SwhidIndex.isSwhid(line)) {
+                        swhidLines.add(line);
+                    }
+                }
+                long[] resolved = swhidLines.isEmpty() ? null : swhids.resolve(swhidLines);
+                for (int i = 0, j = 0; i < lines.size(); i++) {
+                    String line = lines.get(i);
+                    if (swhids == null || !SwhidIndex.isSwhid(line)) {
+                        batch.add(Long.parseLong(line));
+                    } else if (resolved[j++] != -1) {
+                        batch.add(resolved[j - 1]);
+                    } else {
+                        System.err.println("Unknown SWHID, skipped: " + line);
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                // a batch of unknown SWHIDs is empty without being the last one
+                while (position == batch.size()) {
+                    if (eof) {
+                        return false;
+                    }
+                    fill();
+                }
+                return true;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.getLong(position++);
+            }
+        };
+    }
+
+    /**
+     * Stops the workers, interrupting the running chunks, and waits for them to finish.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Waiting for the batch workers to stop...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @FunctionalInterface
+    public interface ResultConsumer {
+        void accept(long startId, Object result) throws IOException;
+    }
+}
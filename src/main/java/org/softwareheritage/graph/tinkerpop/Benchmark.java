@@ -1,8 +1,7 @@
 package org.softwareheritage.graph.tinkerpop;
 
 import com.martiansoftware.jsap.*;
-import it.unimi.dsi.big.webgraph.LazyLongIterator;
-import org.apache.tinkerpop.gremlin.process.traversal.Order;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
 import org.apache.tinkerpop.gremlin.process.traversal.util.Metrics;
@@ -17,6 +16,8 @@ import org.webgraph.tinkerpop.structure.provider.WebGraphPropertyProvider;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -24,13 +25,13 @@ import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class Benchmark {
 
@@ -39,7 +40,11 @@ public class Benchmark {
     private final WebGraphGraph graph;
     private final SwhBidirectionalGraph swhGraph;
     private final GremlinQueryExecutor e;
-    private final long samples;
+    private final VisitedSet.Pool visitedSets;
+    private final NativeQuery nativeQuery;
+    private final StartPointSampler sampler;
+    private final StartPointSampler.Stratify stratify;
+    private final int samples;
     private final int iters;
 
     private final Map<String, Supplier<BenchmarkQuery>> queries = Map.of(
@@ -66,9 +71,29 @@ public class Benchmark {
                                 "The size of edge cache."),
                         new FlaggedOption("vcache", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'v', "vcache",
                                 "The size of vertex cache."),
-                        new FlaggedOption("argument", JSAP.LONG_PARSER, "-1", JSAP.NOT_REQUIRED, 'a', "argument",
-                                "If present, profiles the query with the argument, instead of doing iterations."),
-                        new Switch("print", 'p', "print")});
+                        new FlaggedOption("filenameCache", JSAP.INTEGER_PARSER,
+                                String.valueOf(SwhProperties.DEFAULT_FILENAME_CACHE_SIZE), JSAP.NOT_REQUIRED, 'f',
+                                "filename-cache", "The number of decoded filenames to cache."),
+                        new FlaggedOption("pinFilenames", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 'n',
+                                "pin-filenames", "The number of most frequent filenames to pin in the cache at startup."),
+                        new FlaggedOption("messageCache", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED,
+                                JSAP.NO_SHORTFLAG, "message-cache",
+                                "The number of decoded messages to cache, 0 to disable the cache."),
+                        new FlaggedOption("argument", JSAP.STRING_PARSER, "-1", JSAP.NOT_REQUIRED, 'a', "argument",
+                                "If present, profiles the query with the argument (a node id or a SWHID), instead "
+                                + "of doing iterations."),
+                        new FlaggedOption("seed", JSAP.LONG_PARSER, null, JSAP.NOT_REQUIRED, 'r', "seed",
+                                "The seed for picking samples. Defaults to a random seed."),
+                        new FlaggedOption("stratify", JSAP.STRING_PARSER, "none", JSAP.NOT_REQUIRED, 'S', "stratify",
+                                "Stratifies samples by degree buckets: none | outdegree | indegree."),
+                        new FlaggedOption("sampleFile", JSAP.STRING_PARSER, null, JSAP.NOT_REQUIRED, 'F',
+                                "sample-file", "Reads the samples from this file if it exists, otherwise saves the "
+                                + "picked samples to it."),
+                        new Switch("print", 'p', "print"),
+                        new FlaggedOption("format", JSAP.STRING_PARSER, "text", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG,
+                                "format", "The format of printed results: text | ndjson | csv | binary | swhid."),
+                        new FlaggedOption("output", JSAP.STRING_PARSER, "-", JSAP.NOT_REQUIRED, 'o', "output",
+                                "Where printed results are written: - (standard output), tcp://host:port or a file.")});
 
         JSAPResult config = jsap.parse(args);
         if (jsap.messagePrinted()) {
@@ -81,28 +106,57 @@ public class Benchmark {
         int samples = config.getInt("samples");
         int vcache = config.getInt("vcache");
         int ecache = config.getInt("ecache");
-        long argument = config.getLong("argument");
+        String argument = config.getString("argument");
         boolean print = config.getBoolean("print");
+        int filenameCacheSize = config.getInt("filenameCache");
+        int pinFilenames = config.getInt("pinFilenames");
+        int messageCacheSize = config.getInt("messageCache");
+        long seed = config.contains("seed") ? config.getLong("seed") : System.nanoTime();
+        StartPointSampler.Stratify stratify = StartPointSampler.Stratify.valueOf(
+                config.getString("stratify").toUpperCase());
+        Path sampleFile = config.contains("sampleFile") ? Path.of(config.getString("sampleFile")) : null;
+        ResultSink.Format format = ResultSink.Format.valueOf(config.getString("format").toUpperCase());
+        String output = config.getString("output");
 
         System.out.println("Loading graph...");
         SwhBidirectionalGraph swhGraph = SwhBidirectionalGraph.loadLabelled(path);
         swhGraph.loadLabelNames();
         swhGraph.loadAuthorTimestamps();
 
-        WebGraphPropertyProvider swh = SwhProperties.withEdgeLabels(swhGraph);
+        FilenameCache filenames = new FilenameCache(swhGraph, filenameCacheSize);
+        if (pinFilenames > 0) {
+            filenames.pinMostFrequent(pinFilenames);
+        }
+        WebGraphPropertyProvider swh = SwhProperties.withEdgeLabels(swhGraph, filenames, messageCacheSize);
+        PrimitiveDedupStrategy.register();
         WebGraphGraph graph = WebGraphGraph.open(swhGraph, swh, path, vcache, ecache);
-        Benchmark benchmark = new Benchmark(graph, swhGraph, samples, iters);
+        NodeTypeIndex types = NodeTypeIndex.load(swhGraph);
+        TypeIndexStrategy.register(graph, types);
+        StartPointSampler sampler = new StartPointSampler(swhGraph, seed, types);
+        SwhidIndex swhids = SwhidIndex.open(path);
+        Benchmark benchmark = new Benchmark(graph, swhGraph, sampler, stratify, samples, iters);
         System.out.println("Done");
 
-        benchmark.runQueryByName(query, argument, print);
+        if (swhids == null && SwhidIndex.isSwhid(argument)) {
+            System.err.println("SWHID arguments need the .mph and .order files of the graph");
+            System.exit(1);
+        }
+        long start = swhids != null ? swhids.id(argument) : Long.parseLong(argument);
+        benchmark.runQueryByName(query, start, print, sampleFile, swhids, format, output);
+        System.out.println(filenames);
     }
 
-    public Benchmark(WebGraphGraph graph, SwhBidirectionalGraph swhGraph, long samples, int iters) {
+    public Benchmark(WebGraphGraph graph, SwhBidirectionalGraph swhGraph, StartPointSampler sampler,
+                     StartPointSampler.Stratify stratify, int samples, int iters) {
         this.graph = graph;
         this.swhGraph = swhGraph;
+        this.sampler = sampler;
+        this.stratify = stratify;
         this.samples = samples;
         this.iters = iters;
         this.e = new GremlinQueryExecutor(graph);
+        this.visitedSets = new VisitedSet.Pool(swhGraph.numNodes());
+        this.nativeQuery = new NativeQuery(swhGraph, visitedSets, null);
     }
 
     private void profileVertexQuery(List<Long> startIds, BenchmarkQuery query, boolean printMetrics) throws IOException {
@@ -220,7 +274,8 @@ public class Benchmark {
         return metrics1.get(metrics1.size() - 1);
     }
 
-    private void runQueryByName(String name, long arg, boolean print) throws IOException {
+    private void runQueryByName(String name, long arg, boolean print, Path sampleFile, SwhidIndex swhids,
+                                ResultSink.Format format, String output) throws IOException {
         if (!queries.containsKey(name)) {
             System.out.println("Unknown query name: " + name);
             return;
@@ -232,15 +287,26 @@ public class Benchmark {
             System.out.println("Argument provided, running query once for id: " + arg);
             if (print) {
                 System.out.println("Printing results:\n");
-                Function apply = (Function) query.getQuery().apply(arg);
-                e.print(apply);
+                var apply = (Function<GraphTraversalSource, GraphTraversal<?, ?>>) query.getQuery().apply(arg);
+                try (ResultSink sink = ResultSink.open(output, format, swhGraph).withSwhidIndex(swhids)) {
+                    sink.writeAll(apply.apply(graph.traversal()));
+                }
                 return;
             }
             startIds = List.of(arg);
             printMetrics = true;
         } else {
-            System.out.println("Generating starting points...");
-            startIds = query.generateStartingPoints();
+            if (sampleFile != null && Files.exists(sampleFile)) {
+                System.out.println("Loading starting points from " + sampleFile);
+                startIds = toList(StartPointSampler.load(sampleFile, swhids));
+            } else {
+                System.out.println("Generating starting points...");
+                startIds = query.generateStartingPoints();
+                if (sampleFile != null) {
+                    StartPointSampler.save(sampleFile, startIds.stream().mapToLong(Long::longValue).toArray());
+                    System.out.println("Starting points saved at: " + sampleFile);
+                }
+            }
         }
         profileVertexQuery(startIds, query, printMetrics);
     }
@@ -249,11 +315,12 @@ public class Benchmark {
         return e.profile(query);
     }
 
-    private List<Long> randomVerticesWithLabel(String label, long count) {
-        return e.get(g -> g.V().hasLabel(label)
-                           .order().by(Order.shuffle)
-                           .limit(count)
-                           .id().map(id -> (long) id.get()));
+    private List<Long> randomVerticesWithType(Node.Type type) {
+        return toList(sampler.sample(type, samples, stratify));
+    }
+
+    private static List<Long> toList(long[] ids) {
+        return Arrays.stream(ids).boxed().collect(Collectors.toList());
     }
 
 
@@ -270,28 +337,12 @@ public class Benchmark {
 
         @Override
         public List<Long> generateStartingPoints() {
-            return randomVerticesWithLabel("CNT", samples);
+            return randomVerticesWithType(Node.Type.CNT);
         }
 
         @Override
         public long nativeImpl(long id) {
-            return dfsVertices(id, new boolean[50_000_000]);
-        }
-
-        private long dfsVertices(long child, boolean[] used) {
-            used[(int) child] = true;
-            var predecessors = swhGraph.predecessors(child);
-            long parent;
-            long res = 0;
-            while ((parent = predecessors.nextLong()) != -1) {
-                if (!used[(int) parent]) {
-                    if (swhGraph.getNodeType(parent) == Node.Type.REV) {
-                        long authorTimestamp = swhGraph.getAuthorTimestamp(parent);
-                    }
-                    res += dfsVertices(parent, used);
-                }
-            }
-            return res + 1;
+            return nativeQuery.earliestContainingRevisions(id, 1).size();
         }
     }
 
@@ -308,29 +359,12 @@ public class Benchmark {
 
         @Override
         public List<Long> generateStartingPoints() {
-            return randomVerticesWithLabel("REV", samples);
+            return randomVerticesWithType(Node.Type.REV);
         }
 
         @Override
         public long nativeImpl(long id) {
-            return dfs(id, new boolean[50_000_000]);
-        }
-
-        private long dfs(long child, boolean[] used) {
-            used[(int) child] = true;
-            if (swhGraph.getNodeType(child) == Node.Type.ORI) {
-                return 1;
-            }
-            var predecessors = swhGraph.predecessors(child);
-            long parent;
-            long res = 0;
-            while ((parent = predecessors.nextLong()) != -1) {
-                if (!used[(int) parent]) {
-                    res++;
-                    res += dfs(parent, used);
-                }
-            }
-            return res;
+            return nativeQuery.originOfRevision(id).size();
         }
     }
 
@@ -347,50 +381,17 @@ public class Benchmark {
 
         @Override
         public List<Long> generateStartingPoints() {
-            return randomVerticesWithLabel("REV", samples);
+            return randomVerticesWithType(Node.Type.REV);
         }
 
         @Override
         public long nativeImpl(long id) {
-            return dfsVertices(id, new boolean[50_000_000], new ArrayList<>());
-        }
-
-        private long dfsVertices(long parent, boolean[] used, List<Long> path) {
-            used[(int) parent] = true;
-            if (swhGraph.getNodeType(parent) == Node.Type.REV) {
-                LazyLongIterator successors = swhGraph.successors(parent);
-                long child;
-                while ((child = successors.nextLong()) != -1) {
-                    if (swhGraph.getNodeType(child) == Node.Type.DIR) {
-                        return dfsVertices(child, used, path);
-                    }
-                }
+            try {
+                return nativeQuery.listing().write(id, OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            var successors = swhGraph.labelledSuccessors(parent);
-            long child;
-            long res = 0;
-            while ((child = successors.nextLong()) != -1) {
-                DirEntry[] label = (DirEntry[]) successors.label().get();
-                if (!used[(int) child]) {
-                    if (swhGraph.getNodeType(child) == Node.Type.DIR || swhGraph.getNodeType(child) == Node.Type.CNT) {
-                        for (DirEntry dirEntry : label) {
-                            res++;
-                            String pp = Stream.concat(path.stream(), Stream.of(dirEntry.filenameId))
-                                              .map(labelId -> new String(swhGraph.getLabelName(labelId)))
-                                              .collect(Collectors.joining("/"));
-//                            System.out.println(pp);
-                            List<Long> path1 = new ArrayList<>(path);
-                            path1.add(dirEntry.filenameId);
-                            res += dfsVertices(child, used, path1);
-                        }
-                    } else {
-                        res += dfsVertices(child, used, path);
-                    }
-                }
-            }
-            return res;
         }
-
     }
 
     private class SnapshotRevisionsWithBranches implements BenchmarkQuery<Long, Vertex, String> {
@@ -406,25 +407,31 @@ public class Benchmark {
 
         @Override
         public List<Long> generateStartingPoints() {
-            return randomVerticesWithLabel("SNP", samples);
+            return randomVerticesWithType(Node.Type.SNP);
         }
 
         @Override
         public long nativeImpl(long id) {
-            return dfsEdges(id, new boolean[50_000_000]);
-        }
-
-        private long dfsEdges(long parent, boolean[] used) {
-            used[(int) parent] = true;
-            var successors = swhGraph.labelledSuccessors(parent);
-            long child;
             long res = 0;
-            while ((child = successors.nextLong()) != -1) {
-                if (swhGraph.getNodeType(child) == Node.Type.REL || swhGraph.getNodeType(child) == Node.Type.REV) {
-                    res += 1;
-                    mapEdge(parent, child, (DirEntry[]) successors.label().get());
-                    if (!used[(int) child]) {
-                        res += dfsEdges(child, used);
+            LongArrayList stack = new LongArrayList();
+            stack.add(id);
+            try (VisitedSet used = visitedSets.acquire()) {
+                used.add(id);
+                while (!stack.isEmpty()) {
+                    long parent = stack.popLong();
+                    var successors = swhGraph.labelledSuccessors(parent);
+                    long child;
+                    while ((child = successors.nextLong()) != -1) {
+                        if (swhGraph.getNodeType(child) == Node.Type.REL
+                                || swhGraph.getNodeType(child) == Node.Type.REV) {
+                            DirEntry[] branches = (DirEntry[]) successors.label().get();
+                            // one output line per branch for snapshot edges, one per edge otherwise
+                            res += swhGraph.getNodeType(parent) == Node.Type.SNP ? branches.length : 1;
+                            mapEdge(parent, child, branches);
+                            if (used.add(child)) {
+                                stack.add(child);
+                            }
+                        }
                     }
                 }
             }
@@ -458,7 +465,7 @@ public class Benchmark {
 //
 //        @Override
 //        public List<Long> generateStartingPoints() {
-//            return randomVerticesWithLabel("ORI", samples);
+//            return randomVerticesWithType(Node.Type.ORI);
 //        }
 //    }
 
@@ -0,0 +1,379 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.big.webgraph.LazyLongIterator;
+import it.unimi.dsi.big.webgraph.labelling.ArcLabelledNodeIterator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+import org.softwareheritage.graph.labels.DirEntry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming {@code ls -lR} of a revision or directory: the native version of
+ * {@link Query#recursiveContentPathsWithPermissions(long)}, writing the same lines ({@code a/b/c [perms: 33188]}).
+ * <p>
+ * The tree is walked depth-first with an explicit stack. The path of the current directory is kept as a single byte
+ * prefix which grows and shrinks with the stack, so a prefix is never rebuilt per line; the filenames of a directory
+ * are decoded once, when the directory is entered. Lines are assembled in reused buffers, and {@link #write} copies
+ * them straight to the output without creating strings. Instances are not thread-safe.
+ * <p>
+ * With a {@link SubtreeCache}, the listings of the walked directories are captured and cached, and directories found
+ * in the cache are replayed under the current prefix instead of being walked.
+ */
+public class ContentListing {
+
+    private static final byte[] PERMS = " [perms: ".getBytes(StandardCharsets.US_ASCII);
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final SwhBidirectionalGraph graph;
+    /** Reused frames, one per depth of the current path. */
+    private final List<Frame> frames = new ArrayList<>();
+    private byte[] prefix = new byte[256];
+    private byte[] line = new byte[256];
+
+    private final SubtreeCache cache;
+    /** The lines of the directories being captured for the cache, with their full prefix. */
+    private byte[] capture = new byte[0];
+    private int captureLength;
+    /** The end offsets of the captured lines. */
+    private final IntArrayList captureEnds = new IntArrayList();
+    /** The number of open frames being captured. */
+    private int capturing;
+
+    private LineSink sink;
+    private long lines;
+    private int depth;
+
+    public ContentListing(SwhBidirectionalGraph graph) {
+        this(graph, null);
+    }
+
+    /**
+     * @param cache the cache of directory listings, or {@code null}
+     */
+    public ContentListing(SwhBidirectionalGraph graph, SubtreeCache cache) {
+        this.graph = graph;
+        this.cache = cache;
+    }
+
+    /**
+     * Receives the listing, one line at a time. The buffer is only valid during the call.
+     */
+    @FunctionalInterface
+    public interface LineSink {
+        void accept(byte[] buffer, int length) throws IOException;
+    }
+
+    /**
+     * Writes the listing of the revision or directory to {@code out}, one entry per line.
+     *
+     * @return the number of lines written.
+     */
+    public long write(long root, OutputStream out) throws IOException {
+        byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+        int[] position = {0};
+        long res = list(root, (bytes, length) -> {
+            if (position[0] + length + 1 > buffer.length) {
+                out.write(buffer, 0, position[0]);
+                position[0] = 0;
+                if (length + 1 > buffer.length) {
+                    out.write(bytes, 0, length);
+                    out.write('\n');
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, position[0], length);
+            buffer[position[0] + length] = '\n';
+            position[0] += length + 1;
+        });
+        out.write(buffer, 0, position[0]);
+        return res;
+    }
+
+    /**
+     * @return the lines of the listing, for callers which need them as strings.
+     */
+    public List<String> lines(long root) {
+        List<String> res = new ArrayList<>();
+        try {
+            list(root, (bytes, length) -> res.add(new String(bytes, 0, length, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return res;
+    }
+
+    /**
+     * Lists the revision or directory into the sink.
+     *
+     * @return the number of lines.
+     * @throws java.util.concurrent.CancellationException if the thread is interrupted.
+     */
+    public long list(long root, LineSink sink) throws IOException {
+        this.sink = sink;
+        lines = 0;
+        capturing = 0;
+        depth = 0;
+        if (graph.getNodeType(root) == Node.Type.REV) {
+            enterRevision(root, 0);
+        } else {
+            enterDirectory(root, 0);
+        }
+        long steps = 0;
+        while (depth > 0) {
+            NativeQuery.checkInterrupted(++steps);
+            Frame frame = frames.get(depth - 1);
+            if (frame.next == frame.size) {
+                leave(frame);
+                continue;
+            }
+            int i = frame.next++;
+            long child = frame.children[i];
+            Node.Type type = graph.getNodeType(child);
+            for (int e = frame.entryStart[i]; e < frame.entryStart[i + 1]; e++) {
+                writeLine(frame.prefixLength, frame.names[e], frame.permissions[e]);
+            }
+            if (frame.entryStart[i] == frame.entryStart[i + 1] || type == Node.Type.CNT) {
+                continue;
+            }
+            // the path of the subtree goes through the first name of the entry, like the Gremlin version
+            int childPrefix = appendToPrefix(frame.prefixLength, frame.names[frame.entryStart[i]]);
+            if (type == Node.Type.DIR) {
+                enterDirectory(child, childPrefix);
+            } else if (type == Node.Type.REV) {
+                enterRevision(child, childPrefix);
+            }
+        }
+        this.sink = null;
+        return lines;
+    }
+
+    private void enterRevision(long revision, int prefixLength) throws IOException {
+        // a revision with several directories pushes one frame per directory, all with the same prefix length; frames
+        // only write to the prefix past their own length, so each one resumes with its prefix intact. The frames
+        // pushed below the top one would capture the lines of the frames above them, so only the top one is captured
+        LazyLongIterator successors = graph.successors(revision);
+        long previous = -1;
+        long dir;
+        while ((dir = successors.nextLong()) != -1) {
+            if (graph.getNodeType(dir) == Node.Type.DIR) {
+                if (previous != -1) {
+                    enterDirectory(previous, prefixLength, false);
+                }
+                previous = dir;
+            }
+        }
+        if (previous != -1) {
+            enterDirectory(previous, prefixLength, true);
+        }
+    }
+
+    private void enterDirectory(long dir, int prefixLength) throws IOException {
+        enterDirectory(dir, prefixLength, true);
+    }
+
+    /**
+     * Replays the cached listing of the directory, or pushes a frame to walk it.
+     *
+     * @param capture whether the listing of the directory may be captured for the cache
+     */
+    private void enterDirectory(long dir, int prefixLength, boolean capture) throws IOException {
+        SubtreeCache.Subtree cached = cache != null ? cache.get(dir) : null;
+        if (cached != null) {
+            for (int i = 0, start = 0; i < cached.ends.length; start = cached.ends[i++]) {
+                writeLine(prefixLength, cached.listing, start, cached.ends[i] - start);
+            }
+            return;
+        }
+        Frame frame = frame(depth++);
+        frame.enter(dir, prefixLength);
+        frame.captureStart = -1;
+        if (cache != null && capture) {
+            if (capturing == 0) {
+                captureLength = 0;
+                captureEnds.clear();
+            }
+            frame.captureStart = captureLength;
+            frame.captureLine = captureEnds.size();
+            capturing++;
+        }
+    }
+
+    /**
+     * Pops the frame, and caches the listing of its directory if it was captured.
+     */
+    private void leave(Frame frame) {
+        depth--;
+        if (frame.captureStart < 0) {
+            return;
+        }
+        capturing--;
+        int count = captureEnds.size() - frame.captureLine;
+        if (count < cache.minEntries()) {
+            return;
+        }
+        // strip the frame's prefix from every captured line
+        byte[] listing = new byte[captureLength - frame.captureStart - count * frame.prefixLength];
+        int[] ends = new int[count];
+        int length = 0;
+        for (int i = 0, start = frame.captureStart; i < count; start = captureEnds.getInt(frame.captureLine + i++)) {
+            int lineLength = captureEnds.getInt(frame.captureLine + i) - start - frame.prefixLength;
+            System.arraycopy(capture, start + frame.prefixLength, listing, length, lineLength);
+            length += lineLength;
+            ends[i] = length;
+        }
+        cache.put(frame.dir, new SubtreeCache.Subtree(listing, ends));
+    }
+
+    private Frame frame(int depth) {
+        while (frames.size() <= depth) {
+            frames.add(new Frame());
+        }
+        return frames.get(depth);
+    }
+
+    /**
+     * Appends {@code name/} to the prefix of length {@code length}.
+     *
+     * @return the new prefix length.
+     */
+    private int appendToPrefix(int length, byte[] name) {
+        int res = length + name.length + 1;
+        if (res > prefix.length) {
+            prefix = Arrays.copyOf(prefix, Math.max(res, prefix.length * 2));
+        }
+        System.arraycopy(name, 0, prefix, length, name.length);
+        prefix[length + name.length] = '/';
+        return res;
+    }
+
+    private void writeLine(int prefixLength, byte[] name, int permission) throws IOException {
+        int length = prefixLength + name.length + PERMS.length + 12;
+        if (length > line.length) {
+            line = Arrays.copyOf(line, Math.max(length, line.length * 2));
+        }
+        System.arraycopy(prefix, 0, line, 0, prefixLength);
+        int pos = prefixLength;
+        System.arraycopy(name, 0, line, pos, name.length);
+        pos += name.length;
+        System.arraycopy(PERMS, 0, line, pos, PERMS.length);
+        pos += PERMS.length;
+        pos = writeInt(permission, line, pos);
+        line[pos++] = ']';
+        emit(pos);
+    }
+
+    /**
+     * Writes a line made of the prefix and a relative line of a cached listing.
+     */
+    private void writeLine(int prefixLength, byte[] relative, int offset, int relativeLength) throws IOException {
+        int length = prefixLength + relativeLength;
+        if (length > line.length) {
+            line = Arrays.copyOf(line, Math.max(length, line.length * 2));
+        }
+        System.arraycopy(prefix, 0, line, 0, prefixLength);
+        System.arraycopy(relative, offset, line, prefixLength, relativeLength);
+        emit(length);
+    }
+
+    private void emit(int length) throws IOException {
+        lines++;
+        if (capturing > 0) {
+            capture(length);
+        }
+        sink.accept(line, length);
+    }
+
+    /**
+     * Appends the line to the capture buffer. If it grows past the size of a cacheable listing, the directories being
+     * walked are not cached.
+     */
+    private void capture(int length) {
+        if (captureLength + length > cache.maxEntryBytes()) {
+            for (int i = 0; i < depth; i++) {
+                frames.get(i).captureStart = -1;
+            }
+            capturing = 0;
+            return;
+        }
+        if (captureLength + length > capture.length) {
+            capture = Arrays.copyOf(capture, (int) Math.min(cache.maxEntryBytes(),
+                    Math.max(captureLength + length, 2L * capture.length)));
+        }
+        System.arraycopy(line, 0, capture, captureLength, length);
+        captureLength += length;
+        captureEnds.add(captureLength);
+    }
+
+    private static int writeInt(int value, byte[] buffer, int pos) {
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    /**
+     * A directory being listed: its children with their decoded entries, and the position in them.
+     */
+    private class Frame {
+        long[] children = new long[16];
+        /** The entries of child {@code i} are {@code [entryStart[i], entryStart[i + 1])}. */
+        int[] entryStart = new int[17];
+        byte[][] names = new byte[16][];
+        int[] permissions = new int[16];
+        int size;
+        int next;
+        int prefixLength;
+        long dir;
+        /** The start of the directory's lines in the capture buffer, {@code -1} if it is not cached. */
+        int captureStart;
+        int captureLine;
+
+        void enter(long dir, int prefixLength) {
+            this.dir = dir;
+            this.prefixLength = prefixLength;
+            size = 0;
+            next = 0;
+            int entries = 0;
+            ArcLabelledNodeIterator.LabelledArcIterator successors = graph.labelledSuccessors(dir);
+            long child;
+            while ((child = successors.nextLong()) != -1) {
+                DirEntry[] labels = (DirEntry[]) successors.label().get();
+                if (size + 1 == children.length) {
+                    children = Arrays.copyOf(children, children.length * 2);
+                    entryStart = Arrays.copyOf(entryStart, children.length + 1);
+                }
+                children[size] = child;
+                entryStart[size] = entries;
+                if (entries + labels.length > names.length) {
+                    int capacity = Math.max(entries + labels.length, names.length * 2);
+                    names = Arrays.copyOf(names, capacity);
+                    permissions = Arrays.copyOf(permissions, capacity);
+                }
+                for (DirEntry label : labels) {
+                    names[entries] = graph.getLabelName(label.filenameId);
+                    permissions[entries] = label.permission;
+                    entries++;
+                }
+                size++;
+            }
+            entryStart[size] = entries;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.big.webgraph.labelling.ArcLabelledNodeIterator;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+import org.softwareheritage.graph.labels.DirEntry;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Random access to the labels of the arcs of a node.
+ * <p>
+ * Labels are stored in a bit stream and can only be decoded sequentially. The first lookup for a source node decodes
+ * its whole successor list once; the successors and their labels are kept in a small LRU cache, and subsequent lookups
+ * binary search the (sorted) successor array. Reading all edge labels of a node thus costs one pass over its list
+ * instead of one pass per edge.
+ */
+public class EdgeLabelIndex {
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    private static final DirEntry[] NO_LABEL = new DirEntry[0];
+
+    private final SwhBidirectionalGraph graph;
+    private final Map<Long, LabelledSuccessors> cache;
+
+    /**
+     * @param graph     the labelled graph
+     * @param cacheSize the number of source nodes whose decoded labels are kept
+     */
+    public EdgeLabelIndex(SwhBidirectionalGraph graph, int cacheSize) {
+        this.graph = graph;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, LabelledSuccessors> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return the label of the arc {@code fromId -> toId}, or {@code null} if there is no such arc.
+     */
+    public DirEntry[] get(long fromId, long toId) {
+        LabelledSuccessors s = successors(fromId);
+        int i = Arrays.binarySearch(s.successors, toId);
+        return i >= 0 ? s.labels[i] : null;
+    }
+
+    /**
+     * @return the decoded successors of {@code nodeId} with their labels.
+     */
+    public LabelledSuccessors successors(long nodeId) {
+        synchronized (cache) {
+            LabelledSuccessors cached = cache.get(nodeId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        LabelledSuccessors decoded = decode(nodeId);
+        synchronized (cache) {
+            cache.put(nodeId, decoded);
+        }
+        return decoded;
+    }
+
+    private LabelledSuccessors decode(long nodeId) {
+        int outdegree = (int) graph.outdegree(nodeId);
+        long[] successors = new long[outdegree];
+        DirEntry[][] labels = new DirEntry[outdegree][];
+        ArcLabelledNodeIterator.LabelledArcIterator s = graph.labelledSuccessors(nodeId);
+        long succ;
+        int i = 0;
+        while ((succ = s.nextLong()) != -1) {
+            successors[i] = succ;
+            DirEntry[] label = (DirEntry[]) s.label().get();
+            labels[i] = label != null ? label : NO_LABEL;
+            i++;
+        }
+        return new LabelledSuccessors(successors, labels);
+    }
+
+    /**
+     * Successors of a node in increasing order, with the label of each arc at the same index.
+     */
+    public static class LabelledSuccessors {
+        public final long[] successors;
+        public final DirEntry[][] labels;
+
+        LabelledSuccessors(long[] successors, DirEntry[][] labels) {
+            this.successors = successors;
+            this.labels = labels;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.big.webgraph.labelling.ArcLabelledNodeIterator;
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+import org.softwareheritage.graph.labels.DirEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded concurrent cache of decoded label names (filenames and branch names), keyed by label id.
+ * <p>
+ * Eviction is frequency-aware: when the cache is full, the least frequently used entry out of a small random sample
+ * of all entries is evicted. Frequencies are halved periodically so that entries that were popular a long time ago
+ * eventually leave. The most frequent labels of the graph can also be pinned with {@link #pinMostFrequent(int)};
+ * pinned entries are never evicted.
+ */
+public class FilenameCache {
+
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final SwhBidirectionalGraph graph;
+    private final int capacity;
+    private final ConcurrentHashMap<Long, Entry> entries;
+    /** The cached entries, to sample eviction candidates from; guarded by itself. */
+    private final ObjectArrayList<Entry> slots = new ObjectArrayList<>();
+    private volatile Long2ObjectOpenHashMap<String> pinned = new Long2ObjectOpenHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong accessesSinceAging = new AtomicLong();
+
+    /**
+     * @param graph    the graph with loaded label names
+     * @param capacity the maximum number of cached (non-pinned) names
+     */
+    public FilenameCache(SwhBidirectionalGraph graph, int capacity) {
+        this.graph = graph;
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>(Math.max(16, capacity / 2));
+    }
+
+    /**
+     * @return the decoded name of the label.
+     */
+    public String get(long labelId) {
+        String name = pinned.get(labelId);
+        if (name != null) {
+            hits.increment();
+            return name;
+        }
+        if (accessesSinceAging.incrementAndGet() > capacity * 10L) {
+            age();
+        }
+        Entry entry = entries.get(labelId);
+        if (entry != null) {
+            hits.increment();
+            entry.frequency.incrementAndGet();
+            return entry.name;
+        }
+        misses.increment();
+        name = decode(labelId);
+        if (capacity > 0) {
+            insert(labelId, name);
+        }
+        return name;
+    }
+
+    private String decode(long labelId) {
+        return new String(graph.getLabelName(labelId));
+    }
+
+    /**
+     * Caches the name, in a free slot or in the slot of the evicted entry.
+     */
+    private void insert(long labelId, String name) {
+        synchronized (slots) {
+            if (entries.containsKey(labelId)) {
+                return;
+            }
+            Entry entry = new Entry(labelId, name);
+            if (slots.size() < capacity) {
+                slots.add(entry);
+            } else {
+                int slot = victim();
+                Entry victim = slots.get(slot);
+                // pinned entries left their slot already
+                if (entries.remove(victim.labelId, victim)) {
+                    evictions.increment();
+                }
+                slots.set(slot, entry);
+            }
+            entries.put(labelId, entry);
+        }
+    }
+
+    /**
+     * @return the slot of the least frequently used entry out of a random sample of the slots.
+     */
+    private int victim() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int res = -1;
+        int minFrequency = Integer.MAX_VALUE;
+        for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+            int slot = random.nextInt(slots.size());
+            int frequency = slots.get(slot).frequency.get();
+            if (res == -1 || frequency < minFrequency) {
+                minFrequency = frequency;
+                res = slot;
+            }
+        }
+        return res;
+    }
+
+    private void age() {
+        accessesSinceAging.set(0);
+        for (Entry entry : entries.values()) {
+            entry.frequency.updateAndGet(f -> f >> 1);
+        }
+    }
+
+    /**
+     * Pins the {@code n} most frequent labels of the graph, counted over all arcs of directories and snapshots.
+     * <p>
+     * This scans every labelled arc of the graph once, and is meant to be run at startup.
+     */
+    public void pinMostFrequent(int n) throws IOException {
+        int labelCount = Integer.parseInt(
+                Files.readString(Path.of(graph.getPath() + ".labels.count.txt")).strip());
+        int[] counts = new int[labelCount];
+        for (long node = 0; node < graph.numNodes(); node++) {
+            Node.Type type = graph.getNodeType(node);
+            if (type != Node.Type.DIR && type != Node.Type.SNP) {
+                continue;
+            }
+            ArcLabelledNodeIterator.LabelledArcIterator s = graph.labelledSuccessors(node);
+            while (s.nextLong() != -1) {
+                for (DirEntry dirEntry : (DirEntry[]) s.label().get()) {
+                    counts[(int) dirEntry.filenameId]++;
+                }
+            }
+        }
+        // min-heap of the n most frequent label ids seen so far
+        IntHeapPriorityQueue top = new IntHeapPriorityQueue((a, b) -> Integer.compare(counts[a], counts[b]));
+        for (int labelId = 0; labelId < labelCount; labelId++) {
+            if (counts[labelId] == 0) {
+                continue;
+            }
+            if (top.size() < n) {
+                top.enqueue(labelId);
+            } else if (counts[labelId] > counts[top.firstInt()]) {
+                top.dequeueInt();
+                top.enqueue(labelId);
+            }
+        }
+        Long2ObjectOpenHashMap<String> newPinned = new Long2ObjectOpenHashMap<>(top.size());
+        while (!top.isEmpty()) {
+            int labelId = top.dequeueInt();
+            newPinned.put(labelId, decode(labelId));
+            synchronized (slots) {
+                Entry entry = entries.remove((long) labelId);
+                if (entry != null) {
+                    // its slot is reused first
+                    entry.frequency.set(-1);
+                }
+            }
+        }
+        pinned = newPinned;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of cached (non-pinned) names.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public int pinnedCount() {
+        return pinned.size();
+    }
+
+    @Override
+    public String toString() {
+        long h = hits();
+        long m = misses();
+        return String.format("FilenameCache[size=%d, pinned=%d, hits=%d, misses=%d, evictions=%d, hit rate=%.2f%%]",
+                size(), pinnedCount(), h, m, evictions(), h + m == 0 ? 0 : 100.0 * h / (h + m));
+    }
+
+    private static class Entry {
+        final long labelId;
+        final String name;
+        final AtomicInteger frequency = new AtomicInteger(1);
+
+        Entry(long labelId, String name) {
+            this.labelId = labelId;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.softwareheritage.graph.labels.DirEntry;
+
+import java.util.function.BiPredicate;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+
+/**
+ * Predicates on the raw {@code DirEntry[]} labels of edges, comparing label ids and permissions as integers.
+ * <p>
+ * Names are resolved once to label ids with a {@link LabelIndex}, then e.g.
+ * {@code g.V(dir).outE().has(FilenamePredicates.DIR_ENTRY, FilenamePredicates.named(labels.exact("Makefile")))}
+ * keeps the edges with an entry named {@code Makefile} without decoding any filename.
+ */
+public final class FilenamePredicates {
+
+    /**
+     * The key of the {@code DirEntry[]} edge property of {@link SwhProperties#withEdgeLabels}, the key of the label
+     * ({@code labelspec} of the labelled graph).
+     */
+    public static final String DIR_ENTRY = "DirEntry";
+
+    private FilenamePredicates() {
+    }
+
+    /**
+     * @return whether one of the entries has a name in {@code names} and a permission accepted by {@code permissions}.
+     */
+    public static boolean matches(DirEntry[] entries, LongPredicate names, IntPredicate permissions) {
+        if (entries == null) {
+            return false;
+        }
+        for (DirEntry entry : entries) {
+            if (names.test(entry.filenameId) && permissions.test(entry.permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a predicate on {@link #DIR_ENTRY} accepting edges with an entry named in {@code names}.
+     */
+    public static P<DirEntry[]> named(LabelIndex.LabelSet names) {
+        return named(names, permission -> true);
+    }
+
+    /**
+     * @return a predicate on {@link #DIR_ENTRY} accepting edges with an entry named in {@code names} whose permission is
+     * accepted by {@code permissions}, e.g. {@code p -> (p & 0111) != 0} for executables.
+     */
+    public static P<DirEntry[]> named(LabelIndex.LabelSet names, IntPredicate permissions) {
+        return predicate((entries, unused) -> matches(entries, names, permissions), names);
+    }
+
+    /**
+     * {@code P} compares the tested value with a value of the same type, which does not hold here: the value is only
+     * kept for {@code toString}.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static P<DirEntry[]> predicate(BiPredicate<DirEntry[], Object> test, Object value) {
+        return new P(test, value);
+    }
+}
@@ -0,0 +1,66 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import org.webgraph.tinkerpop.structure.provider.WebGraphPropertyProvider;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Property provider recording the calls and latency of every accessor of another provider in {@link QueryMetrics}.
+ * <p>
+ * Accessors are named {@code vertex_label}, {@code vertex.<key>}, {@code edge_label} and {@code edge.<key>}, e.g.
+ * {@code edge.dir_entry_str} for filename decoding.
+ */
+public class InstrumentedPropertyProvider implements WebGraphPropertyProvider {
+
+    private final WebGraphPropertyProvider provider;
+    private final QueryMetrics metrics;
+    private final ConcurrentHashMap<String, String> vertexNames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> edgeNames = new ConcurrentHashMap<>();
+
+    public InstrumentedPropertyProvider(WebGraphPropertyProvider provider, QueryMetrics metrics) {
+        this.provider = provider;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String vertexLabel(long nodeId) {
+        long start = System.nanoTime();
+        String res = provider.vertexLabel(nodeId);
+        metrics.timer("vertex_label").record(System.nanoTime() - start);
+        return res;
+    }
+
+    @Override
+    public String[] vertexProperties(long nodeId) {
+        return provider.vertexProperties(nodeId);
+    }
+
+    @Override
+    public Object vertexProperty(String key, long nodeId) {
+        long start = System.nanoTime();
+        Object res = provider.vertexProperty(key, nodeId);
+        metrics.timer(vertexNames.computeIfAbsent(key, k -> "vertex." + k)).record(System.nanoTime() - start);
+        return res;
+    }
+
+    @Override
+    public String[] edgeProperties(long fromId, long toId) {
+        return provider.edgeProperties(fromId, toId);
+    }
+
+    @Override
+    public String edgeLabel(long fromId, long toId) {
+        long start = System.nanoTime();
+        String res = provider.edgeLabel(fromId, toId);
+        metrics.timer("edge_label").record(System.nanoTime() - start);
+        return res;
+    }
+
+    @Override
+    public Object edgeProperty(String key, long fromId, long toId) {
+        long start = System.nanoTime();
+        Object res = provider.edgeProperty(key, fromId, toId);
+        metrics.timer(edgeNames.computeIfAbsent(key, k -> "edge." + k)).record(System.nanoTime() - start);
+        return res;
+    }
+}
@@ -0,0 +1,250 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import com.martiansoftware.jsap.*;
+import it.unimi.dsi.fastutil.Size64;
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Object2LongFunction;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.function.LongPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves filenames (and branch names) to label ids, so that edges can be filtered by comparing the
+ * {@code filenameId}s of their {@code DirEntry[]} instead of decoding every label (see {@link FilenamePredicates}).
+ * <p>
+ * Exact names are resolved through the minimal perfect hash of the labels ({@code <graph>.labels.mph}, keyed by the
+ * base64-encoded name); since the hash maps unknown names to arbitrary ids, the name of the id is checked. Prefixes and
+ * globs are resolved on the sorted label table ({@code <graph>.labels.sorted.bin}, built by {@link #main}): a binary
+ * search finds the labels starting with the literal prefix, and only those are decoded and matched. Without the table,
+ * all labels are decoded once per resolution.
+ */
+public class LabelIndex {
+
+    public static final String SORTED_SUFFIX = ".labels.sorted.bin";
+
+    private final SwhBidirectionalGraph graph;
+    private final Object2LongFunction<byte[]> mph;
+    private final long numLabels;
+    private final MappedColumn sorted;
+
+    private LabelIndex(SwhBidirectionalGraph graph, Object2LongFunction<byte[]> mph, MappedColumn sorted) {
+        this.graph = graph;
+        this.mph = mph;
+        this.numLabels = ((Size64) mph).size64();
+        this.sorted = sorted;
+    }
+
+    /**
+     * @param graph the graph, its label names are loaded if needed
+     */
+    @SuppressWarnings("unchecked")
+    public static LabelIndex open(SwhBidirectionalGraph graph) throws IOException {
+        graph.loadLabelNames();
+        String path = graph.getPath();
+        Object2LongFunction<byte[]> mph;
+        try {
+            mph = (Object2LongFunction<byte[]>) BinIO.loadObject(path + ".labels.mph");
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        Path sortedFile = Path.of(path + SORTED_SUFFIX);
+        MappedColumn sorted = Files.exists(sortedFile) ? MappedColumn.open(sortedFile, Long.BYTES) : null;
+        return new LabelIndex(graph, mph, sorted);
+    }
+
+    public long numLabels() {
+        return numLabels;
+    }
+
+    /**
+     * @return the id of the label with this name, or {@code -1} if no label has it.
+     */
+    public long id(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        long id = mph.getLong(Base64.getEncoder().encode(bytes));
+        if (id < 0 || id >= numLabels || !Arrays.equals(graph.getLabelName(id), bytes)) {
+            return -1;
+        }
+        return id;
+    }
+
+    /**
+     * @return the labels with one of the names.
+     */
+    public LabelSet exact(String... names) {
+        LongOpenHashSet ids = new LongOpenHashSet();
+        for (String name : names) {
+            long id = id(name);
+            if (id != -1) {
+                ids.add(id);
+            }
+        }
+        return new LabelSet(ids);
+    }
+
+    /**
+     * @return the labels starting with the prefix.
+     */
+    public LabelSet prefix(String prefix) {
+        return match(prefix.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * @param glob a pattern where {@code *} matches any sequence of characters and {@code ?} any character, e.g.
+     *             {@code *.json} or {@code Makefile*}
+     * @return the labels matching the pattern.
+     */
+    public LabelSet glob(String glob) {
+        int wildcard = 0;
+        while (wildcard < glob.length() && glob.charAt(wildcard) != '*' && glob.charAt(wildcard) != '?') {
+            wildcard++;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        Pattern pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        return match(glob.substring(0, wildcard).getBytes(StandardCharsets.UTF_8), pattern);
+    }
+
+    /**
+     * @param pattern the pattern the labels starting with {@code prefix} must match, or {@code null}
+     */
+    private LabelSet match(byte[] prefix, Pattern pattern) {
+        LongOpenHashSet ids = new LongOpenHashSet();
+        if (sorted == null) {
+            for (long id = 0; id < numLabels; id++) {
+                add(ids, id, prefix, pattern);
+            }
+            return new LabelSet(ids);
+        }
+        long from = lowerBound(prefix);
+        for (long i = from; i < numLabels; i++) {
+            long id = sorted.getLong(i);
+            if (!startsWith(graph.getLabelName(id), prefix)) {
+                break;
+            }
+            add(ids, id, prefix, pattern);
+        }
+        return new LabelSet(ids);
+    }
+
+    private void add(LongOpenHashSet ids, long id, byte[] prefix, Pattern pattern) {
+        byte[] name = graph.getLabelName(id);
+        if (startsWith(name, prefix)
+                && (pattern == null || pattern.matcher(new String(name, StandardCharsets.UTF_8)).matches())) {
+            ids.add(id);
+        }
+    }
+
+    /**
+     * @return the position of the first label of the sorted table which is not before {@code key}.
+     */
+    private long lowerBound(byte[] key) {
+        long lo = 0;
+        long hi = numLabels;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (Arrays.compareUnsigned(graph.getLabelName(sorted.getLong(mid)), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static boolean startsWith(byte[] name, byte[] prefix) {
+        return name.length >= prefix.length && Arrays.equals(name, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * A set of label ids, tested without decoding the labels.
+     */
+    public static class LabelSet implements LongPredicate {
+        private final LongOpenHashSet ids;
+
+        LabelSet(LongOpenHashSet ids) {
+            this.ids = ids;
+        }
+
+        public static LabelSet of(long... ids) {
+            return new LabelSet(new LongOpenHashSet(ids));
+        }
+
+        @Override
+        public boolean test(long labelId) {
+            return ids.contains(labelId);
+        }
+
+        public int size() {
+            return ids.size();
+        }
+
+        @Override
+        public String toString() {
+            return "LabelSet" + ids;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, JSAPException {
+        SimpleJSAP jsap = new SimpleJSAP(LabelIndex.class.getName(),
+                "Builds the table of label ids sorted by name, used to resolve filename prefixes and globs.",
+                new Parameter[]{
+                        new FlaggedOption("graphPath", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'g', "path",
+                                "The basename of the compressed graph.")});
+
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(1);
+        }
+
+        String path = config.getString("graphPath");
+        System.out.println("Loading graph...");
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
+        LabelIndex index = open(graph);
+        if (index.numLabels > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many labels to sort in memory: " + index.numLabels);
+        }
+        int n = (int) index.numLabels;
+        System.out.println("Decoding " + n + " labels...");
+        byte[][] names = new byte[n][];
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = graph.getLabelName(i);
+            ids[i] = i;
+        }
+        System.out.println("Sorting...");
+        it.unimi.dsi.fastutil.Arrays.parallelQuickSort(0, n,
+                (a, b) -> Arrays.compareUnsigned(names[ids[a]], names[ids[b]]),
+                (a, b) -> {
+                    int tmp = ids[a];
+                    ids[a] = ids[b];
+                    ids[b] = tmp;
+                });
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(Path.of(path + SORTED_SUFFIX)), 1 << 16))) {
+            for (int id : ids) {
+                out.writeLong(id);
+            }
+        }
+        System.out.println("Sorted labels saved at: " + path + SORTED_SUFFIX);
+    }
+}
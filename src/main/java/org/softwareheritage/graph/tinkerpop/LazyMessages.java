@@ -0,0 +1,136 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Revision and release messages, served from the memory-mapped {@code .property.message.bin} and offset files.
+ * <p>
+ * The files are only mapped on first access, so queries which never read messages pay nothing. Decoded messages can
+ * be kept in an optional bounded LRU cache; large messages can be streamed with {@link #write(long, OutputStream)}
+ * without building a {@code String}.
+ */
+public class LazyMessages {
+
+    private final Path path;
+    private final Map<Long, byte[]> cache;
+    private volatile MappedStrings messages;
+
+    /**
+     * @param basePath  the basename of the graph
+     * @param cacheSize the number of decoded messages to cache, {@code 0} to disable the cache
+     */
+    public LazyMessages(String basePath, int cacheSize) {
+        this.path = Path.of(basePath + ".property.message.bin");
+        this.cache = cacheSize <= 0 ? null : new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    private MappedStrings messages() {
+        MappedStrings res = messages;
+        if (res == null) {
+            synchronized (this) {
+                res = messages;
+                if (res == null) {
+                    try {
+                        res = messages = MappedStrings.open(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    public boolean has(long node) {
+        return messages().has(node);
+    }
+
+    /**
+     * @return the decoded message, or {@code null} if the node has none.
+     */
+    public byte[] get(long node) {
+        if (cache == null) {
+            return messages().get(node);
+        }
+        synchronized (cache) {
+            byte[] cached = cache.get(node);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] message = messages().get(node);
+        if (message != null) {
+            synchronized (cache) {
+                cache.put(node, message);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return the decoded message as a {@code String}, or {@code null} if the node has none.
+     */
+    public String getString(long node) {
+        byte[] message = get(node);
+        return message == null ? null : new String(message);
+    }
+
+    /**
+     * @return the base64-encoded message as a read-only view of the mapped file, or {@code null}.
+     */
+    public ByteBuffer encoded(long node) {
+        return messages().encodedSlice(node);
+    }
+
+    /**
+     * Decodes the message straight from the mapped file into {@code out}.
+     *
+     * @return whether the node has a message.
+     */
+    public boolean write(long node, OutputStream out) throws IOException {
+        ByteBuffer encoded = encoded(node);
+        if (encoded == null) {
+            return false;
+        }
+        try (InputStream decoded = Base64.getDecoder().wrap(new ByteBufferInputStream(encoded))) {
+            decoded.transferTo(out);
+        }
+        return true;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only, memory-mapped column of fixed-width big-endian values (the format of the {@code .property.*.bin} files),
+ * indexed by {@code long}.
+ * <p>
+ * Values are read straight from the mapping, without copying or boxing. Files larger than 2 GiB are mapped in chunks.
+ */
+public class MappedColumn {
+
+    private static final int CHUNK_LOG2 = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_LOG2) - 1;
+
+    private final int width;
+    private final long size;
+    private final MappedByteBuffer[] chunks;
+
+    private MappedColumn(int width, long size, MappedByteBuffer[] chunks) {
+        this.width = width;
+        this.size = size;
+        this.chunks = chunks;
+    }
+
+    /**
+     * @param width the size of a value in bytes: 1, 2, 4 or 8 for the typed getters, any size for values read with
+     *              {@link #slice}
+     */
+    public static MappedColumn open(Path path, int width) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long bytes = channel.size();
+            int chunkCount = (int) ((bytes + CHUNK_MASK) >>> CHUNK_LOG2);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long start = (long) i << CHUNK_LOG2;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << CHUNK_LOG2,
+                        bytes - start));
+            }
+            return new MappedColumn(width, bytes / width, chunks);
+        }
+    }
+
+    /**
+     * @return the number of values in the column.
+     */
+    public long size() {
+        return size;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    // values never cross chunk boundaries since the chunk size is a multiple of the width
+
+    public long getLong(long index) {
+        long offset = index * Long.BYTES;
+        return chunks[(int) (offset >>> CHUNK_LOG2)].getLong((int) (offset & CHUNK_MASK));
+    }
+
+    public int getInt(long index) {
+        long offset = index * Integer.BYTES;
+        return chunks[(int) (offset >>> CHUNK_LOG2)].getInt((int) (offset & CHUNK_MASK));
+    }
+
+    public short getShort(long index) {
+        long offset = index * Short.BYTES;
+        return chunks[(int) (offset >>> CHUNK_LOG2)].getShort((int) (offset & CHUNK_MASK));
+    }
+
+    public byte getByte(long index) {
+        return chunks[(int) (index >>> CHUNK_LOG2)].get((int) (index & CHUNK_MASK));
+    }
+
+    /**
+     * Returns {@code length} bytes starting at byte {@code offset}, as a read-only view of the mapping when they lie in
+     * a single chunk, as a copy otherwise.
+     */
+    public ByteBuffer slice(long offset, int length) {
+        int chunk = (int) (offset >>> CHUNK_LOG2);
+        int start = (int) (offset & CHUNK_MASK);
+        if (start + length <= chunks[chunk].capacity()) {
+            return chunks[chunk].duplicate().position(start).limit(start + length).slice().asReadOnlyBuffer();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            copy.put(getByte(offset + i));
+        }
+        return copy.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads the value at {@code index} according to the column width, sign-extended to a {@code long}.
+     */
+    public long get(long index) {
+        switch (width) {
+            case Long.BYTES:
+                return getLong(index);
+            case Integer.BYTES:
+                return getInt(index);
+            case Short.BYTES:
+                return getShort(index);
+            default:
+                return getByte(index);
+        }
+    }
+}
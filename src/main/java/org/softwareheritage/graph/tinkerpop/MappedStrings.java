@@ -0,0 +1,89 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Base64;
+
+/**
+ * Memory-mapped string property: a file of base64-encoded, newline-terminated values, and a column of {@code long}
+ * offsets into it, with {@code -1} for nodes without a value (the format of {@code .property.message.bin} and
+ * {@code .property.tag_name.bin}).
+ */
+public class MappedStrings {
+
+    private final MappedColumn data;
+    private final MappedColumn offsets;
+
+    private MappedStrings(MappedColumn data, MappedColumn offsets) {
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @param path the path of the data file, the offsets are read from {@code <data without .bin>.offset.bin}
+     */
+    public static MappedStrings open(Path path) throws IOException {
+        String data = path.toString();
+        Path offsets = Path.of(data.substring(0, data.length() - ".bin".length()) + ".offset.bin");
+        return new MappedStrings(MappedColumn.open(path, Byte.BYTES), MappedColumn.open(offsets, Long.BYTES));
+    }
+
+    /**
+     * @return whether the node has a value.
+     */
+    public boolean has(long node) {
+        return offsets.getLong(node) != -1;
+    }
+
+    /**
+     * @return the position of the base64-encoded value of the node in the data file, or {@code -1}.
+     */
+    public long offset(long node) {
+        return offsets.getLong(node);
+    }
+
+    /**
+     * @return the length of the base64-encoded value starting at {@code offset}.
+     */
+    public int encodedLength(long offset) {
+        long end = offset;
+        while (end < data.size() && data.getByte(end) != '\n') {
+            end++;
+        }
+        return (int) (end - offset);
+    }
+
+    /**
+     * Copies the base64-encoded value starting at {@code offset}.
+     */
+    public byte[] encoded(long offset) {
+        byte[] res = new byte[encodedLength(offset)];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = data.getByte(offset + i);
+        }
+        return res;
+    }
+
+    /**
+     * @return the base64-encoded value of the node as a read-only view of the mapping, or {@code null} if it has none.
+     */
+    public ByteBuffer encodedSlice(long node) {
+        long offset = offsets.getLong(node);
+        if (offset == -1) {
+            return null;
+        }
+        return data.slice(offset, encodedLength(offset));
+    }
+
+    /**
+     * @return the decoded value of the node, or {@code null} if it has none.
+     */
+    public byte[] get(long node) {
+        long offset = offsets.getLong(node);
+        if (offset == -1) {
+            return null;
+        }
+        return Base64.getDecoder().decode(encoded(offset));
+    }
+}
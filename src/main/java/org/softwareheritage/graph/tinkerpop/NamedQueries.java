@@ -0,0 +1,169 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.softwareheritage.graph.Node;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Registry of the {@link Query} functions, addressable by name.
+ * <p>
+ * Every query takes a start node id and, for some of them, one extra {@code long} argument
+ * (e.g. the limit of {@link Query#earliestContainingRevisions(long, long)}). Most queries can run either as a Gremlin
+ * traversal or on the {@link NativeQuery} engine, see {@link Backend}.
+ */
+public class NamedQueries {
+
+    /**
+     * The engine used to execute a named query.
+     */
+    public enum Backend {
+        /**
+         * Runs the {@link Query} traversal through TinkerPop.
+         */
+        GREMLIN,
+        /**
+         * Runs the equivalent {@link NativeQuery} method, results are node ids instead of vertices.
+         */
+        NATIVE
+    }
+
+    private static final Map<String, NamedQuery> QUERIES = new LinkedHashMap<>();
+
+    static {
+        register("leaves", Node.Type.DIR, null, (id, arg) -> Query.leaves(id),
+                (q, id, arg) -> q.leaves(id).iterator());
+        register("containingRevisions", Node.Type.CNT, null, (id, arg) -> Query.containingRevisions(id),
+                (q, id, arg) -> q.containingRevisions(id).iterator());
+        register("earliestContainingRevisions", Node.Type.CNT, 10L, Query::earliestContainingRevisions,
+                (q, id, arg) -> q.earliestContainingRevisions(id, arg).iterator());
+        register("earliestContainingRevision", Node.Type.CNT, null, (id, arg) -> Query.earliestContainingRevision(id),
+                (q, id, arg) -> q.earliestContainingRevisions(id, 1).iterator());
+        register("originOfRevision", Node.Type.REV, null, (id, arg) -> Query.originOfRevision(id),
+                (q, id, arg) -> q.originOfRevision(id).iterator());
+        register("contentProvenance", Node.Type.CNT, -1L, Query::contentProvenance,
+                (q, id, arg) -> path(q.contentProvenance(id, arg)));
+        register("revisionsEarlierThan", Node.Type.CNT, Long.MAX_VALUE, Query::revisionsEarlierThan,
+                (q, id, arg) -> q.revisionsEarlierThan(id, arg).iterator());
+        register("revisionsAfter", Node.Type.CNT, 0L, Query::revisionsAfter,
+                (q, id, arg) -> q.revisionsAfter(id, arg).iterator());
+        register("revisionContentPaths", Node.Type.REV, null, (id, arg) -> Query.revisionContentPaths(id),
+                (q, id, arg) -> q.revisionContentPaths(id).stream().map(Arrays::toString).iterator());
+        register("recursiveContentPathsWithPermissions", Node.Type.REV, null,
+                (id, arg) -> Query.recursiveContentPathsWithPermissions(id),
+                (q, id, arg) -> q.recursiveContentPathsWithPermissions(id).iterator());
+        register("filesNamed", Node.Type.REV, 0L,
+                (id, arg) -> Query.filesNamed(id, LabelIndex.LabelSet.of(arg)),
+                (q, id, arg) -> q.filesNamed(id, LabelIndex.LabelSet.of(arg)).iterator());
+        register("snapshotRevisions", Node.Type.SNP, null, (id, arg) -> Query.snapshotRevisions(id),
+                (q, id, arg) -> edges(q.snapshotRevisions(id)));
+        register("snapshotRevisionsWithBranches", Node.Type.SNP, null,
+                (id, arg) -> Query.snapshotRevisionsWithBranches(id), null);
+    }
+
+    /**
+     * @param startType       the type of the start nodes the query is meant for
+     * @param defaultArgument a typical value of the extra argument, or {@code null} if the query takes none
+     */
+    private static void register(String name, Node.Type startType, Long defaultArgument, GremlinQuery gremlin,
+                                 NativeFunction nativeImpl) {
+        QUERIES.put(name, new NamedQuery(name, startType, defaultArgument, gremlin, nativeImpl));
+    }
+
+    private static Iterator<String> path(long[] path) {
+        return path == null ? Collections.emptyIterator() : List.of(Arrays.toString(path)).iterator();
+    }
+
+    private static Iterator<String> edges(LongArrayList pairs) {
+        List<String> res = new ArrayList<>(pairs.size() / 2);
+        for (int i = 0; i < pairs.size(); i += 2) {
+            res.add(String.format("(%s -> %s)", pairs.getLong(i), pairs.getLong(i + 1)));
+        }
+        return res.iterator();
+    }
+
+    /**
+     * @param name the query name, e.g. {@code originOfRevision}
+     * @return the query, or {@code null} if there is no query with this name.
+     */
+    public static NamedQuery get(String name) {
+        return QUERIES.get(name);
+    }
+
+    public static Set<String> names() {
+        return Collections.unmodifiableSet(QUERIES.keySet());
+    }
+
+    @FunctionalInterface
+    public interface GremlinQuery {
+        Function<GraphTraversalSource, ? extends GraphTraversal<?, ?>> apply(long id, long argument);
+    }
+
+    @FunctionalInterface
+    public interface NativeFunction {
+        Iterator<?> apply(NativeQuery engine, long id, long argument);
+    }
+
+    public static class NamedQuery {
+        private final String name;
+        private final Node.Type startType;
+        private final Long defaultArgument;
+        private final GremlinQuery gremlin;
+        private final NativeFunction nativeImpl;
+
+        NamedQuery(String name, Node.Type startType, Long defaultArgument, GremlinQuery gremlin,
+                   NativeFunction nativeImpl) {
+            this.name = name;
+            this.startType = startType;
+            this.defaultArgument = defaultArgument;
+            this.gremlin = gremlin;
+            this.nativeImpl = nativeImpl;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return whether the query needs an extra argument besides the start node id.
+         */
+        public boolean needsArgument() {
+            return defaultArgument != null;
+        }
+
+        /**
+         * @return the type of the start nodes the query is meant for.
+         */
+        public Node.Type getStartType() {
+            return startType;
+        }
+
+        /**
+         * @return a typical value of the extra argument (used by benchmarks), or {@code 0} if the query takes none.
+         */
+        public long getDefaultArgument() {
+            return defaultArgument != null ? defaultArgument : 0;
+        }
+
+        public Function<GraphTraversalSource, ? extends GraphTraversal<?, ?>> gremlin(long id, long argument) {
+            return gremlin.apply(id, argument);
+        }
+
+        public boolean hasNative() {
+            return nativeImpl != null;
+        }
+
+        /**
+         * @throws UnsupportedOperationException if the query has no native implementation.
+         */
+        public Iterator<?> runNative(NativeQuery engine, long id, long argument) {
+            if (nativeImpl == null) {
+                throw new UnsupportedOperationException("No native implementation for query: " + name);
+            }
+            return nativeImpl.apply(engine, id, argument);
+        }
+    }
+}
@@ -0,0 +1,605 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.big.webgraph.LazyLongIterator;
+import it.unimi.dsi.big.webgraph.labelling.ArcLabelledNodeIterator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+import org.softwareheritage.graph.labels.DirEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.LongPredicate;
+
+/**
+ * Native implementations of the {@link Query} traversals, working directly on node ids of the
+ * {@link SwhBidirectionalGraph} instead of TinkerPop {@code Vertex}/{@code Edge} objects.
+ * <p>
+ * Every method returns the same elements as its {@link Query} counterpart (as node ids), though not necessarily in
+ * the same order. Traversals are iterative and use pooled {@link VisitedSet}s, so they neither overflow the stack on
+ * deep histories nor allocate a visited set per call. Instances are not thread-safe, use one per thread (over a
+ * {@link SwhBidirectionalGraph#copy()}); the pool can be shared.
+ * <p>
+ * If a {@link ParallelQuery} is provided, the backward searches ({@link #containingRevisions},
+ * {@link #revisionsEarlierThan} and {@link #originOfRevision}) are delegated to it. If an {@link OriginIndex} is
+ * provided, {@link #originOfRevision} reads the origins from it when they all fit in the index. If a
+ * {@link TimestampIndex} is provided, the time-bounded searches ({@link #revisionsEarlierThan},
+ * {@link #revisionsBetween} and {@link #revisionsAfter}) run sequentially and do not climb above the nodes without a
+ * revision of the time window above them, and {@link #earliestContainingRevisions} does not climb above the nodes
+ * without a revision earlier than the ones already found.
+ * <p>
+ * Traversals check every {@link #INTERRUPT_CHECK_INTERVAL} expanded nodes whether their thread was interrupted, e.g.
+ * by a server timeout, and then throw a {@link CancellationException} to free the thread.
+ */
+public class NativeQuery {
+
+    static final int INTERRUPT_CHECK_INTERVAL = 1 << 12;
+
+    private final SwhBidirectionalGraph graph;
+    private final VisitedSet.Pool visitedSets;
+    private final ParallelQuery parallel;
+    private final SubtreeCache subtrees;
+    private final OriginIndex origins;
+    private final TimestampIndex timestamps;
+    private ContentListing listing;
+    private long expanded;
+    private boolean monotonicHistory;
+
+    public NativeQuery(SwhBidirectionalGraph graph) {
+        this(graph, new VisitedSet.Pool(graph.numNodes()), null);
+    }
+
+    /**
+     * @param parallel the engine for the parallel backward searches, or {@code null} to run them sequentially.
+     */
+    public NativeQuery(SwhBidirectionalGraph graph, VisitedSet.Pool visitedSets, ParallelQuery parallel) {
+        this(graph, visitedSets, parallel, null);
+    }
+
+    /**
+     * @param subtrees the directory listing cache used by {@link #listing()}, or {@code null}.
+     */
+    public NativeQuery(SwhBidirectionalGraph graph, VisitedSet.Pool visitedSets, ParallelQuery parallel,
+                       SubtreeCache subtrees) {
+        this(graph, visitedSets, parallel, subtrees, null);
+    }
+
+    /**
+     * @param origins the precomputed origins used by {@link #originOfRevision}, or {@code null}.
+     */
+    public NativeQuery(SwhBidirectionalGraph graph, VisitedSet.Pool visitedSets, ParallelQuery parallel,
+                       SubtreeCache subtrees, OriginIndex origins) {
+        this(graph, visitedSets, parallel, subtrees, origins, null);
+    }
+
+    /**
+     * @param timestamps the timestamp ranges used to prune the time-bounded searches, or {@code null}.
+     */
+    public NativeQuery(SwhBidirectionalGraph graph, VisitedSet.Pool visitedSets, ParallelQuery parallel,
+                       SubtreeCache subtrees, OriginIndex origins, TimestampIndex timestamps) {
+        this.graph = graph;
+        this.visitedSets = visitedSets;
+        this.parallel = parallel;
+        this.subtrees = subtrees;
+        this.origins = origins;
+        this.timestamps = timestamps;
+    }
+
+    public SwhBidirectionalGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Makes {@link #earliestContainingRevisions(long, long)} assume a monotonic history, see
+     * {@link #earliestContainingRevisions(long, long, boolean)}.
+     */
+    public void setAssumeMonotonicHistory(boolean monotonicHistory) {
+        this.monotonicHistory = monotonicHistory;
+    }
+
+    /**
+     * @see Query#leaves(long)
+     */
+    public LongArrayList leaves(long root) {
+        LongArrayList res = new LongArrayList();
+        LongArrayList stack = new LongArrayList();
+        stack.add(root);
+        try (VisitedSet visited = visitedSets.acquire()) {
+            while (!stack.isEmpty()) {
+                long node = stack.popLong();
+                expanded();
+                LazyLongIterator successors = graph.successors(node);
+                long child;
+                while ((child = successors.nextLong()) != -1) {
+                    if (visited.add(child)) {
+                        if (graph.outdegree(child) == 0) {
+                            res.add(child);
+                        } else {
+                            stack.add(child);
+                        }
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @see Query#containingRevisions(long)
+     */
+    public LongArrayList containingRevisions(long v) {
+        if (parallel != null) {
+            return parallel.containingRevisions(v);
+        }
+        return ancestors(v, Node.Type.REV);
+    }
+
+    /**
+     * Revisions without author timestamp are ordered last.
+     *
+     * @see Query#earliestContainingRevisions(long, long)
+     * @see #setAssumeMonotonicHistory(boolean)
+     */
+    public LongArrayList earliestContainingRevisions(long v, long limit) {
+        return earliestContainingRevisions(v, limit, monotonicHistory);
+    }
+
+    /**
+     * Finds the {@code limit} earliest containing revisions while traversing, keeping only the current best ones in a
+     * bounded heap instead of collecting and sorting all containing revisions. With a {@link TimestampIndex}, once
+     * {@code limit} revisions are found, the search does not climb above the nodes whose earliest revision above is
+     * not earlier than all of them, which never changes the result.
+     *
+     * @param assumeMonotonicHistory if {@code true}, assumes that a revision is never older than its parents, and stops
+     *                               climbing the history from a revision once {@code limit} older revisions are known.
+     *                               This is only a heuristic: author timestamps are not guaranteed to be monotonic.
+     */
+    public LongArrayList earliestContainingRevisions(long v, long limit, boolean assumeMonotonicHistory) {
+        if (limit <= 0) {
+            return new LongArrayList();
+        }
+        TopK earliest = new TopK((int) Math.min(limit, Integer.MAX_VALUE - 8));
+        LongArrayList stack = new LongArrayList();
+        stack.add(v);
+        try (VisitedSet visited = visitedSets.acquire()) {
+            while (!stack.isEmpty()) {
+                long node = stack.popLong();
+                expanded();
+                LazyLongIterator predecessors = graph.predecessors(node);
+                long parent;
+                while ((parent = predecessors.nextLong()) != -1) {
+                    if (!visited.add(parent)) {
+                        continue;
+                    }
+                    Node.Type type = graph.getNodeType(parent);
+                    if (type == Node.Type.REV) {
+                        long timestamp = timestamp(parent);
+                        boolean better = earliest.offer(timestamp, parent);
+                        if (!better && assumeMonotonicHistory) {
+                            continue;
+                        }
+                    }
+                    if (!mayReach(type, Node.Type.REV)) {
+                        continue;
+                    }
+                    // no revision above can enter the heap: undated ones (ordered last) are not in the index range
+                    if (timestamps != null && earliest.isFull() && TimestampIndex.isIndexed(type)
+                            && timestamps.min(parent) >= earliest.worst()) {
+                        continue;
+                    }
+                    stack.add(parent);
+                }
+            }
+        }
+        return earliest.sorted();
+    }
+
+    /**
+     * @return the earliest containing revision, or {@code -1} if there is none.
+     * @see Query#earliestContainingRevision(long)
+     */
+    public long earliestContainingRevision(long v) {
+        LongArrayList res = earliestContainingRevisions(v, 1);
+        return res.isEmpty() ? -1 : res.getLong(0);
+    }
+
+    /**
+     * @see Query#originOfRevision(long)
+     */
+    public LongArrayList originOfRevision(long revision) {
+        if (origins != null && OriginIndex.isIndexed(graph.getNodeType(revision))) {
+            LongArrayList res = origins.origins(revision);
+            if (res != null) {
+                return res;
+            }
+        }
+        if (parallel != null) {
+            return parallel.originOfRevision(revision);
+        }
+        return ancestors(revision, Node.Type.ORI);
+    }
+
+    /**
+     * Searches with the default budgets of {@link ProvenanceSearch}. Only a search for a given origin is bidirectional,
+     * a search for any origin climbs backward from the content.
+     *
+     * @param origin the candidate origin, or a negative value for any origin
+     * @return the node ids from {@code content} to the origin, or {@code null} if none was found.
+     * @see Query#contentProvenance(long, long)
+     */
+    public long[] contentProvenance(long content, long origin) {
+        ProvenanceSearch search = new ProvenanceSearch(graph, ProvenanceSearch.DEFAULT_NODE_BUDGET,
+                ProvenanceSearch.DEFAULT_TIME_BUDGET_MS * 1_000_000);
+        return search.search(content, origin < 0 ? new long[0] : new long[]{origin}).path;
+    }
+
+    /**
+     * @see Query#revisionsEarlierThan(long, long)
+     */
+    public LongArrayList revisionsEarlierThan(long v, long max) {
+        if (parallel != null && timestamps == null) {
+            return parallel.revisionsEarlierThan(v, max);
+        }
+        return ancestors(v, Node.Type.REV, Long.MIN_VALUE, max);
+    }
+
+    /**
+     * @see Query#revisionsBetween(long, long, long)
+     */
+    public LongArrayList revisionsBetween(long v, long from, long to) {
+        return ancestors(v, Node.Type.REV, from, to);
+    }
+
+    /**
+     * @see Query#revisionsAfter(long, long)
+     */
+    public LongArrayList revisionsAfter(long v, long min) {
+        return ancestors(v, Node.Type.REV, min, Long.MAX_VALUE);
+    }
+
+    /**
+     * Paths are returned as the node ids along the path, without the edges.
+     *
+     * @see Query#revisionContentPaths(long)
+     */
+    public List<long[]> revisionContentPaths(long root) {
+        List<long[]> res = new ArrayList<>();
+        LongArrayList start = new LongArrayList();
+        start.add(root);
+        // stack of paths; the graph below a revision is a DAG, so paths are not deduplicated, like the Gremlin version
+        List<long[]> stack = new ArrayList<>();
+        for (long[] path : enterRevision(start)) {
+            stack.add(path);
+        }
+        while (!stack.isEmpty()) {
+            long[] path = stack.remove(stack.size() - 1);
+            expanded();
+            LazyLongIterator successors = graph.successors(path[path.length - 1]);
+            long child;
+            while ((child = successors.nextLong()) != -1) {
+                LongArrayList childPath = new LongArrayList(path);
+                childPath.add(child);
+                for (long[] next : enterRevision(childPath)) {
+                    Node.Type type = graph.getNodeType(next[next.length - 1]);
+                    if (type == Node.Type.DIR || type == Node.Type.CNT) {
+                        res.add(next);
+                    }
+                    stack.add(next);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @see Query#recursiveContentPathsWithPermissions(long)
+     * @see #listing() to stream large listings
+     */
+    public List<String> recursiveContentPathsWithPermissions(long revision) {
+        return listing().lines(revision);
+    }
+
+    /**
+     * Filenames are compared as label ids on the raw {@code DirEntry[]} labels, without decoding them.
+     *
+     * @param names the label ids to look for, e.g. from {@link LabelIndex#exact}
+     * @see Query#filesNamed(long, LabelIndex.LabelSet)
+     */
+    public LongArrayList filesNamed(long root, LongPredicate names) {
+        LongOpenHashSet res = new LongOpenHashSet();
+        LongArrayList stack = new LongArrayList();
+        if (graph.getNodeType(root) == Node.Type.REV) {
+            LazyLongIterator successors = graph.successors(root);
+            long dir;
+            while ((dir = successors.nextLong()) != -1) {
+                if (graph.getNodeType(dir) == Node.Type.DIR) {
+                    stack.add(dir);
+                }
+            }
+        } else {
+            stack.add(root);
+        }
+        try (VisitedSet visited = visitedSets.acquire()) {
+            while (!stack.isEmpty()) {
+                expanded();
+                ArcLabelledNodeIterator.LabelledArcIterator successors = graph.labelledSuccessors(stack.popLong());
+                long child;
+                while ((child = successors.nextLong()) != -1) {
+                    if (FilenamePredicates.matches((DirEntry[]) successors.label().get(), names, permission -> true)) {
+                        res.add(child);
+                    }
+                    if (graph.getNodeType(child) == Node.Type.DIR && visited.add(child)) {
+                        stack.add(child);
+                    }
+                }
+            }
+        }
+        return new LongArrayList(res);
+    }
+
+    /**
+     * @return the {@code ls -lR} engine of this instance.
+     */
+    public ContentListing listing() {
+        if (listing == null) {
+            listing = new ContentListing(graph, subtrees);
+        }
+        return listing;
+    }
+
+    /**
+     * Edges are returned as consecutive (source, target) pairs.
+     *
+     * @see Query#snapshotRevisions(long)
+     */
+    public LongArrayList snapshotRevisions(long snapshot) {
+        LongArrayList edges = new LongArrayList();
+        LongArrayList stack = new LongArrayList();
+        stack.add(snapshot);
+        try (VisitedSet visited = visitedSets.acquire()) {
+            visited.add(snapshot);
+            while (!stack.isEmpty()) {
+                long node = stack.popLong();
+                expanded();
+                LazyLongIterator successors = graph.successors(node);
+                long child;
+                while ((child = successors.nextLong()) != -1) {
+                    Node.Type type = graph.getNodeType(child);
+                    if (type != Node.Type.REV && type != Node.Type.REL) {
+                        continue;
+                    }
+                    edges.add(node);
+                    edges.add(child);
+                    if (visited.add(child)) {
+                        stack.add(child);
+                    }
+                }
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Collects the distinct ancestors of {@code v} with the given type, not including {@code v} itself.
+     */
+    private LongArrayList ancestors(long v, Node.Type type) {
+        return ancestors(v, type, false, 0, 0);
+    }
+
+    /**
+     * Collects the distinct revisions above {@code v} authored in {@code [from, to)}, revisions without author
+     * timestamp excluded, pruning the search with the {@link TimestampIndex}, if any.
+     */
+    private LongArrayList ancestors(long v, Node.Type type, long from, long to) {
+        return ancestors(v, type, true, from, to);
+    }
+
+    /**
+     * @param bounded whether to only keep the ancestors with an author timestamp in {@code [from, to)}
+     */
+    private LongArrayList ancestors(long v, Node.Type type, boolean bounded, long from, long to) {
+        boolean prune = bounded && timestamps != null && type == Node.Type.REV;
+        LongArrayList res = new LongArrayList();
+        if (prune && !timestamps.mayContain(v, from, to)) {
+            return res;
+        }
+        LongArrayList stack = new LongArrayList();
+        stack.add(v);
+        try (VisitedSet visited = visitedSets.acquire()) {
+            while (!stack.isEmpty()) {
+                long node = stack.popLong();
+                expanded();
+                LazyLongIterator predecessors = graph.predecessors(node);
+                long parent;
+                while ((parent = predecessors.nextLong()) != -1) {
+                    if (!visited.add(parent) || prune && !timestamps.mayContain(parent, from, to)) {
+                        continue;
+                    }
+                    Node.Type parentType = graph.getNodeType(parent);
+                    if (parentType == type && (!bounded || hasTimestampIn(parent, from, to))) {
+                        res.add(parent);
+                    }
+                    if (mayReach(parentType, type)) {
+                        stack.add(parent);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    private void expanded() {
+        checkInterrupted(++expanded);
+    }
+
+    /**
+     * @param count the number of nodes expanded so far, the check only happens every
+     *              {@link #INTERRUPT_CHECK_INTERVAL} nodes
+     * @throws CancellationException if the current thread was interrupted.
+     */
+    static void checkInterrupted(long count) {
+        if ((count & (INTERRUPT_CHECK_INTERVAL - 1)) == 0 && Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Query interrupted");
+        }
+    }
+
+    /**
+     * Releases, snapshots and origins only have releases, snapshots and origins as ancestors, so there is no point in
+     * climbing above them when looking for revisions.
+     *
+     * @return whether an ancestor of a node of type {@code from} may have type {@code target}.
+     */
+    static boolean mayReach(Node.Type from, Node.Type target) {
+        if (target == Node.Type.REV || target == Node.Type.DIR || target == Node.Type.CNT) {
+            return from != Node.Type.REL && from != Node.Type.SNP && from != Node.Type.ORI;
+        }
+        return true;
+    }
+
+    private boolean hasTimestampIn(long revision, long from, long to) {
+        long timestamp = graph.getAuthorTimestamp(revision);
+        return timestamp != Long.MIN_VALUE && timestamp >= from && timestamp < to;
+    }
+
+    /**
+     * @return the author timestamp, or {@link Long#MAX_VALUE} if the node has none.
+     */
+    private long timestamp(long node) {
+        long timestamp = graph.getAuthorTimestamp(node);
+        return timestamp == Long.MIN_VALUE ? Long.MAX_VALUE : timestamp;
+    }
+
+    /**
+     * Mirrors {@code choose(hasLabel("REV"), out().hasLabel("DIR"))}: a path ending at a revision is continued to
+     * each of its root directories, other paths are kept as is.
+     */
+    private List<long[]> enterRevision(LongArrayList path) {
+        long last = path.getLong(path.size() - 1);
+        if (graph.getNodeType(last) != Node.Type.REV) {
+            return List.of(path.toLongArray());
+        }
+        List<long[]> res = new ArrayList<>(1);
+        LazyLongIterator successors = graph.successors(last);
+        long child;
+        while ((child = successors.nextLong()) != -1) {
+            if (graph.getNodeType(child) == Node.Type.DIR) {
+                LongArrayList dirPath = new LongArrayList(path);
+                dirPath.add(child);
+                res.add(dirPath.toLongArray());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Bounded max-heap keeping the {@code k} entries with the lowest keys.
+     */
+    private static class TopK {
+        private final int k;
+        private long[] keys;
+        private long[] values;
+        private int size;
+
+        TopK(int k) {
+            this.k = k;
+            this.keys = new long[Math.min(k, 1024)];
+            this.values = new long[keys.length];
+        }
+
+        /**
+         * @return whether the entry is among the {@code k} lowest ones seen so far.
+         */
+        boolean offer(long key, long value) {
+            if (size < k) {
+                if (size == keys.length) {
+                    grow();
+                }
+                keys[size] = key;
+                values[size] = value;
+                siftUp(size++);
+                return true;
+            }
+            if (key >= keys[0]) {
+                return false;
+            }
+            keys[0] = key;
+            values[0] = value;
+            siftDown(0);
+            return true;
+        }
+
+        boolean isFull() {
+            return size == k;
+        }
+
+        /**
+         * @return the greatest key of the heap, which a new key has to be lower than to enter a full heap.
+         */
+        long worst() {
+            return keys[0];
+        }
+
+        LongArrayList sorted() {
+            long[] sortedKeys = Arrays.copyOf(keys, size);
+            long[] sortedValues = Arrays.copyOf(values, size);
+            // pop the heap from the back: the maximum goes last
+            for (int end = size - 1; end > 0; end--) {
+                swap(sortedKeys, sortedValues, 0, end);
+                siftDown(sortedKeys, sortedValues, 0, end);
+            }
+            return LongArrayList.wrap(sortedValues);
+        }
+
+        private void grow() {
+            int capacity = (int) Math.min(k, 2L * keys.length);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[parent] >= keys[i]) {
+                    return;
+                }
+                swap(keys, values, parent, i);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            siftDown(keys, values, i, size);
+        }
+
+        private static void siftDown(long[] keys, long[] values, int i, int size) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && keys[left] > keys[largest]) {
+                    largest = left;
+                }
+                if (right < size && keys[right] > keys[largest]) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(keys, values, i, largest);
+                i = largest;
+            }
+        }
+
+        private static void swap(long[] keys, long[] values, int i, int j) {
+            long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
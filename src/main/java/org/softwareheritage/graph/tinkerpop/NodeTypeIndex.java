@@ -0,0 +1,232 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import com.martiansoftware.jsap.*;
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongIterators;
+import it.unimi.dsi.sux4j.util.EliasFanoMonotoneLongBigList;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+/**
+ * The ids of the nodes of each type, as Elias-Fano compressed sorted lists (about {@code 2 + log2(numNodes / count)}
+ * bits per node of the type).
+ * <p>
+ * Listing the nodes of a type (see {@link TypeIndexStrategy} for {@code V().hasLabel(...)}, and
+ * {@link StartPointSampler}) then costs the number of nodes of the type, instead of a type lookup for every node of the
+ * graph. The index is built from the node types of the graph in one pass per type, or loaded from
+ * {@code <graph>.node2type.index}, saved by {@link #main}.
+ */
+public class NodeTypeIndex {
+
+    public static final String SUFFIX = ".node2type.index";
+
+    private static final Node.Type[] TYPES = Node.Type.values();
+    private static final String[] LABELS = new String[TYPES.length];
+
+    static {
+        for (Node.Type type : TYPES) {
+            LABELS[type.ordinal()] = type.name().intern();
+        }
+    }
+
+    private final EliasFanoMonotoneLongBigList[] ids;
+
+    private NodeTypeIndex(EliasFanoMonotoneLongBigList[] ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * @return the vertex label of nodes of the type, a constant.
+     */
+    public static String label(Node.Type type) {
+        return LABELS[type.ordinal()];
+    }
+
+    /**
+     * @return the type with this vertex label, or {@code null} if no type has it.
+     */
+    public static Node.Type type(String label) {
+        for (Node.Type type : TYPES) {
+            if (LABELS[type.ordinal()].equals(label)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the index from the node types of the graph.
+     */
+    public static NodeTypeIndex build(SwhBidirectionalGraph graph) {
+        long numNodes = graph.numNodes();
+        long[] counts = new long[TYPES.length];
+        for (long node = 0; node < numNodes; node++) {
+            counts[graph.getNodeType(node).ordinal()]++;
+        }
+        EliasFanoMonotoneLongBigList[] ids = new EliasFanoMonotoneLongBigList[TYPES.length];
+        for (Node.Type type : TYPES) {
+            ids[type.ordinal()] = new EliasFanoMonotoneLongBigList(counts[type.ordinal()], numNodes,
+                    new OfType(graph, type));
+        }
+        return new NodeTypeIndex(ids);
+    }
+
+    /**
+     * Loads the index saved next to the graph, or builds it if there is none.
+     */
+    public static NodeTypeIndex load(SwhBidirectionalGraph graph) throws IOException {
+        Path file = Path.of(graph.getPath() + SUFFIX);
+        if (!Files.exists(file)) {
+            return build(graph);
+        }
+        EliasFanoMonotoneLongBigList[] ids;
+        try {
+            ids = (EliasFanoMonotoneLongBigList[]) BinIO.loadObject(file.toFile());
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        long total = 0;
+        for (EliasFanoMonotoneLongBigList list : ids) {
+            total += list.size64();
+        }
+        if (ids.length != TYPES.length || total != graph.numNodes()) {
+            throw new IOException("Node type index " + file + " does not match the graph");
+        }
+        return new NodeTypeIndex(ids);
+    }
+
+    /**
+     * @return the number of nodes of the type.
+     */
+    public long count(Node.Type type) {
+        return ids[type.ordinal()].size64();
+    }
+
+    /**
+     * @return the {@code index}-th smallest id of the nodes of the type.
+     */
+    public long get(Node.Type type, long index) {
+        return ids[type.ordinal()].getLong(index);
+    }
+
+    /**
+     * @return the ids of the nodes of the types, in increasing order.
+     */
+    public LongIterator iterator(Node.Type... types) {
+        if (types.length == 0) {
+            return LongIterators.EMPTY_ITERATOR;
+        }
+        if (types.length == 1) {
+            return ids[types[0].ordinal()].iterator();
+        }
+        return new Merge(types);
+    }
+
+    /**
+     * Merges the sorted, disjoint id lists of several types.
+     */
+    private class Merge implements LongIterator {
+        private final LongIterator[] iterators;
+        private final long[] heads;
+
+        Merge(Node.Type[] types) {
+            iterators = new LongIterator[types.length];
+            heads = new long[types.length];
+            for (int i = 0; i < types.length; i++) {
+                iterators[i] = ids[types[i].ordinal()].iterator();
+                heads[i] = iterators[i].hasNext() ? iterators[i].nextLong() : Long.MAX_VALUE;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (long head : heads) {
+                if (head != Long.MAX_VALUE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long nextLong() {
+            int min = 0;
+            for (int i = 1; i < heads.length; i++) {
+                if (heads[i] < heads[min]) {
+                    min = i;
+                }
+            }
+            long res = heads[min];
+            if (res == Long.MAX_VALUE) {
+                throw new NoSuchElementException();
+            }
+            heads[min] = iterators[min].hasNext() ? iterators[min].nextLong() : Long.MAX_VALUE;
+            return res;
+        }
+    }
+
+    /**
+     * The ids of the nodes of one type, read from the graph.
+     */
+    private static class OfType implements LongIterator {
+        private final SwhBidirectionalGraph graph;
+        private final Node.Type type;
+        private long next = -1;
+
+        OfType(SwhBidirectionalGraph graph, Node.Type type) {
+            this.graph = graph;
+            this.type = type;
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next++;
+            } while (next < graph.numNodes() && graph.getNodeType(next) != type);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < graph.numNodes();
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long res = next;
+            advance();
+            return res;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, JSAPException {
+        SimpleJSAP jsap = new SimpleJSAP(NodeTypeIndex.class.getName(),
+                "Builds the per-type node id lists of a compressed graph.",
+                new Parameter[]{
+                        new FlaggedOption("graphPath", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'g', "path",
+                                "The basename of the compressed graph.")});
+
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(1);
+        }
+
+        String path = config.getString("graphPath");
+        System.out.println("Loading graph...");
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
+        NodeTypeIndex index = build(graph);
+        for (Node.Type type : TYPES) {
+            System.out.println(type + ": " + index.count(type) + " nodes");
+        }
+        BinIO.storeObject(index.ids, path + SUFFIX);
+        System.out.println("Node type index saved at: " + path + SUFFIX);
+    }
+}
@@ -0,0 +1,330 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import com.martiansoftware.jsap.*;
+import it.unimi.dsi.big.webgraph.LazyLongIterator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
+
+/**
+ * Precomputed origins of revisions, releases and snapshots, the answer of {@link Query#originOfRevision(long)} for
+ * every node.
+ * <p>
+ * The index is a memory-mapped column ({@code <graph>.property.origin.bin}) with {@code k} big-endian {@code long}
+ * slots per node, holding {@code origin + 1} ({@code 0} for an empty slot, so that unreached parts of the file stay
+ * sparse). A node with an empty slot has exactly the origins of its other slots; a node with all {@code k} slots used
+ * may have more, and {@link #origins} returns {@code null} for it so that callers fall back to the traversal.
+ * <p>
+ * The index is built offline by {@link #main}: a forward search from every origin through snapshots, releases and
+ * revisions, with the origins processed in parallel. A search stops at nodes whose slots are all used by other origins
+ * (their descendants are then full as well). Revisions referenced by directories (submodules) are also reached through
+ * the directories of the revisions containing them, which the searches do not walk: these revisions and their
+ * revision/release descendants are marked full before the searches, so that they are answered by traversal.
+ * <p>
+ * The file is written in place, and the build records the next origin to process in
+ * {@code <graph>.property.origin.progress} after each chunk of origins, so an interrupted build resumes from there,
+ * redoing the searches of the interrupted chunk. The index is only opened once the build is complete.
+ */
+public class OriginIndex {
+
+    public static final String SUFFIX = ".property.origin.bin";
+    public static final String PROGRESS_SUFFIX = ".property.origin.progress";
+    /** The slot value of the nodes whose origins are not indexed. */
+    private static final long FULL = -1;
+
+    private final MappedColumn column;
+    private final int k;
+
+    private OriginIndex(MappedColumn column, int k) {
+        this.column = column;
+        this.k = k;
+    }
+
+    /**
+     * @param path the basename of the graph
+     * @return the complete index of the graph, or {@code null} if it was not built or its build is not finished.
+     */
+    public static OriginIndex open(String path, long numNodes) throws IOException {
+        Path file = Path.of(path + SUFFIX);
+        if (!Files.exists(file) || Files.exists(Path.of(path + PROGRESS_SUFFIX))) {
+            return null;
+        }
+        MappedColumn column = MappedColumn.open(file, Long.BYTES);
+        if (numNodes == 0 || column.size() % numNodes != 0) {
+            throw new IOException("Origin index " + file + " does not match the graph size");
+        }
+        return new OriginIndex(column, (int) (column.size() / numNodes));
+    }
+
+    /**
+     * @return the number of origin slots per node.
+     */
+    public int slots() {
+        return k;
+    }
+
+    /**
+     * @return an origin of the node, or {@code -1} if it has none or its origins are not indexed.
+     */
+    public long any(long node) {
+        long value = column.getLong(node * k);
+        return value == FULL ? -1 : value - 1;
+    }
+
+    /**
+     * @return all origins of the node, or {@code null} if it has more than fit in the index.
+     */
+    public LongArrayList origins(long node) {
+        LongArrayList res = new LongArrayList(k);
+        for (long slot = node * k, end = slot + k; slot < end; slot++) {
+            long value = column.getLong(slot);
+            if (value == 0) {
+                return res;
+            }
+            if (value == FULL) {
+                return null;
+            }
+            res.add(value - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Whether the index may hold origins for nodes of this type: {@code originOfRevision} climbs from these nodes
+     * through snapshots, releases and revisions only.
+     */
+    public static boolean isIndexed(Node.Type type) {
+        return type == Node.Type.REV || type == Node.Type.REL || type == Node.Type.SNP;
+    }
+
+    public static void main(String[] args) throws IOException, JSAPException, InterruptedException,
+            ExecutionException {
+        SimpleJSAP jsap = new SimpleJSAP(OriginIndex.class.getName(),
+                "Builds the origin index of a compressed graph, resuming an interrupted build.",
+                new Parameter[]{
+                        new FlaggedOption("graphPath", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'g', "path",
+                                "The basename of the compressed graph."),
+                        new FlaggedOption("slots", JSAP.INTEGER_PARSER, "4", JSAP.NOT_REQUIRED, 'k', "slots",
+                                "The number of origins stored per node. Queries for all the origins of nodes with "
+                                + "more origins fall back to the traversal."),
+                        new FlaggedOption("threads", JSAP.INTEGER_PARSER,
+                                String.valueOf(Runtime.getRuntime().availableProcessors()), JSAP.NOT_REQUIRED, 't',
+                                "threads", "The number of threads."),
+                        new FlaggedOption("chunk", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'c', "chunk",
+                                "The number of nodes scanned for origins between two checkpoints.")});
+
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(1);
+        }
+
+        String path = config.getString("graphPath");
+        System.out.println("Loading graph...");
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
+        try (Builder builder = new Builder(graph, path, config.getInt("slots"), config.getInt("threads"))) {
+            builder.build(config.getInt("chunk"));
+        }
+        System.out.println("Origin index saved at: " + path + SUFFIX);
+    }
+
+    /**
+     * Fills the index file in place, see {@link OriginIndex}. Not thread-safe.
+     */
+    public static class Builder implements AutoCloseable {
+        private static final int CHUNK_LOG2 = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_LOG2) - 1;
+        private static final int LOCKS = 1 << 12;
+
+        private final SwhBidirectionalGraph graph;
+        private final Path progress;
+        private final int k;
+        private final FileChannel channel;
+        private final MappedByteBuffer[] chunks;
+        private final Object[] locks = new Object[LOCKS];
+        private final ForkJoinPool pool;
+        private final ThreadLocal<SwhBidirectionalGraph> graphs;
+
+        /**
+         * Opens the index file of the graph, keeping the origins of a previous, interrupted build.
+         *
+         * @param k the number of origins stored per node
+         */
+        public Builder(SwhBidirectionalGraph graph, String path, int k, int threads) throws IOException {
+            this.graph = graph;
+            this.progress = Path.of(path + PROGRESS_SUFFIX);
+            Path file = Path.of(path + SUFFIX);
+            long bytes = graph.numNodes() * k * Long.BYTES;
+            if (Files.exists(file) && !Files.exists(progress)) {
+                throw new IOException("Origin index " + file + " is already complete");
+            }
+            if (Files.exists(progress) && Files.size(file) != bytes) {
+                throw new IOException("Cannot resume " + file + " with " + k + " slots per node");
+            }
+            if (!Files.exists(progress)) {
+                // marks the index as incomplete until the build finishes
+                Files.writeString(progress, "0");
+            }
+            this.k = k;
+            // created sparse: slots are zero until written
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            int chunkCount = (int) ((bytes + CHUNK_MASK) >>> CHUNK_LOG2);
+            this.chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long start = (long) i << CHUNK_LOG2;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(1L << CHUNK_LOG2,
+                        bytes - start));
+            }
+            for (int i = 0; i < LOCKS; i++) {
+                locks[i] = new Object();
+            }
+            this.pool = new ForkJoinPool(threads);
+            this.graphs = ThreadLocal.withInitial(graph::copy);
+        }
+
+        /**
+         * Searches from all origins not processed yet, saving the progress every {@code chunk} scanned nodes.
+         */
+        public void build(int chunk) throws IOException, InterruptedException, ExecutionException {
+            long start = Files.exists(progress) ? Long.parseLong(Files.readString(progress).trim()) : 0;
+            if (start > 0) {
+                System.out.println("Resuming from node " + start);
+            }
+            if (start == 0) {
+                // idempotent, so an interruption before the first checkpoint just runs it again
+                System.out.println("Marking submodule revisions...");
+                pool.submit(() -> LongStream.range(0, graph.numNodes()).parallel().forEach(this::markSubmodule)).get();
+            }
+            LongArrayList origins = new LongArrayList();
+            for (long from = start; from < graph.numNodes(); from += chunk) {
+                long to = Math.min(from + chunk, graph.numNodes());
+                origins.clear();
+                for (long node = from; node < to; node++) {
+                    if (graph.getNodeType(node) == Node.Type.ORI) {
+                        origins.add(node);
+                    }
+                }
+                pool.submit(() -> origins.longParallelStream().forEach(this::search)).get();
+                for (MappedByteBuffer buffer : chunks) {
+                    buffer.force();
+                }
+                Files.writeString(progress, Long.toString(to));
+                System.out.printf("Scanned %d/%d nodes%n", to, graph.numNodes());
+            }
+            Files.deleteIfExists(progress);
+        }
+
+        /**
+         * Adds the origin to all nodes reachable from it.
+         */
+        private void search(long origin) {
+            SwhBidirectionalGraph g = graphs.get();
+            // nodes already holding the origin are searched again, in case a previous build was interrupted there
+            LongOpenHashSet visited = new LongOpenHashSet();
+            LongArrayList stack = new LongArrayList();
+            stack.add(origin);
+            while (!stack.isEmpty()) {
+                LazyLongIterator successors = g.successors(stack.popLong());
+                long child;
+                while ((child = successors.nextLong()) != -1) {
+                    if (isIndexed(g.getNodeType(child)) && visited.add(child) && add(child, origin)) {
+                        stack.add(child);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Marks the revision full if a directory references it, along with the revisions and releases reachable from
+         * it.
+         */
+        private void markSubmodule(long node) {
+            SwhBidirectionalGraph g = graphs.get();
+            if (g.getNodeType(node) != Node.Type.REV) {
+                return;
+            }
+            LazyLongIterator predecessors = g.predecessors(node);
+            long parent;
+            while ((parent = predecessors.nextLong()) != -1) {
+                if (g.getNodeType(parent) == Node.Type.DIR) {
+                    break;
+                }
+            }
+            if (parent == -1 || !markFull(node)) {
+                return;
+            }
+            LongArrayList stack = new LongArrayList();
+            stack.add(node);
+            while (!stack.isEmpty()) {
+                LazyLongIterator successors = g.successors(stack.popLong());
+                long child;
+                while ((child = successors.nextLong()) != -1) {
+                    // stops at nodes already marked, whose descendants are marked as well or being marked
+                    if (isIndexed(g.getNodeType(child)) && markFull(child)) {
+                        stack.add(child);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return whether the node was not marked full yet.
+         */
+        private boolean markFull(long node) {
+            synchronized (locks[(int) (node & (LOCKS - 1))]) {
+                if (slot(node * k) == FULL) {
+                    return false;
+                }
+                for (long slot = node * k, end = slot + k; slot < end; slot++) {
+                    long offset = slot * Long.BYTES;
+                    chunks[(int) (offset >>> CHUNK_LOG2)].putLong((int) (offset & CHUNK_MASK), FULL);
+                }
+                return true;
+            }
+        }
+
+        private long slot(long slot) {
+            long offset = slot * Long.BYTES;
+            return chunks[(int) (offset >>> CHUNK_LOG2)].getLong((int) (offset & CHUNK_MASK));
+        }
+
+        /**
+         * @return whether the node holds the origin, {@code false} if it is full.
+         */
+        private boolean add(long node, long origin) {
+            synchronized (locks[(int) (node & (LOCKS - 1))]) {
+                for (long slot = node * k, end = slot + k; slot < end; slot++) {
+                    long offset = slot * Long.BYTES;
+                    MappedByteBuffer buffer = chunks[(int) (offset >>> CHUNK_LOG2)];
+                    int position = (int) (offset & CHUNK_MASK);
+                    long value = buffer.getLong(position);
+                    if (value == origin + 1) {
+                        return true;
+                    }
+                    if (value == 0) {
+                        buffer.putLong(position, origin + 1);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            pool.shutdown();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.big.webgraph.LazyLongIterator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel versions of the backward {@link NativeQuery} traversals, for start nodes with a large fan-in.
+ * <p>
+ * The traversal is a level-synchronous BFS: each frontier is split into chunks that are expanded by a
+ * {@link ForkJoinPool} (work-stealing), with a shared atomic visited bitset. Each worker thread iterates over its own
+ * copy of the graph. Results contain the same nodes as the sequential versions, in increasing id order.
+ * Instances are thread-safe.
+ * <p>
+ * Visited bitsets are off-heap and pooled, like {@link VisitedSet}s. A search checks between two levels whether its
+ * thread was interrupted, and then throws a {@link CancellationException}.
+ */
+public class ParallelQuery implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private final SwhBidirectionalGraph graph;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<SwhBidirectionalGraph> graphs;
+    private final Queue<AtomicBitSet> visitedSets = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param parallelism the number of worker threads
+     */
+    public ParallelQuery(SwhBidirectionalGraph graph, int parallelism) {
+        this.graph = graph;
+        this.pool = new ForkJoinPool(parallelism);
+        this.graphs = ThreadLocal.withInitial(graph::copy);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @see NativeQuery#containingRevisions(long)
+     */
+    public LongArrayList containingRevisions(long v) {
+        return ancestors(v, Node.Type.REV, false, 0);
+    }
+
+    /**
+     * @see NativeQuery#revisionsEarlierThan(long, long)
+     */
+    public LongArrayList revisionsEarlierThan(long v, long max) {
+        return ancestors(v, Node.Type.REV, true, max);
+    }
+
+    /**
+     * @see NativeQuery#originOfRevision(long)
+     */
+    public LongArrayList originOfRevision(long revision) {
+        return ancestors(revision, Node.Type.ORI, false, 0);
+    }
+
+    /**
+     * @param bounded whether to only keep the ancestors with an author timestamp lower than {@code maxTimestamp}
+     */
+    private LongArrayList ancestors(long v, Node.Type type, boolean bounded, long maxTimestamp) {
+        AtomicBitSet visited = visitedSets.poll();
+        if (visited == null) {
+            visited = new AtomicBitSet(graph.numNodes());
+        }
+        LongArrayList res = new LongArrayList();
+        LongArrayList touched = new LongArrayList();
+        LongArrayList frontier = LongArrayList.wrap(new long[]{v});
+        // the words touched by a failed level are unknown, so the set is only reused if all levels completed
+        boolean complete = true;
+        try {
+            while (!frontier.isEmpty()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Query interrupted");
+                }
+                complete = false;
+                Level level = pool.invoke(new Expand(frontier.elements(), 0, frontier.size(), visited, type, bounded,
+                        maxTimestamp));
+                res.addAll(level.matches);
+                touched.addAll(level.touched);
+                complete = true;
+                frontier = level.next;
+            }
+        } finally {
+            if (complete) {
+                visited.clear(touched);
+                visitedSets.add(visited);
+            }
+        }
+        res.sort(null);
+        return res;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Nodes discovered from a frontier chunk: the next frontier and the ones matching the query.
+     */
+    private static class Level {
+        final LongArrayList next = new LongArrayList();
+        final LongArrayList matches = new LongArrayList();
+        /** The words of the visited set made non-zero while expanding the chunk. */
+        final LongArrayList touched = new LongArrayList();
+
+        Level merge(Level other) {
+            next.addAll(other.next);
+            matches.addAll(other.matches);
+            touched.addAll(other.touched);
+            return this;
+        }
+    }
+
+    private class Expand extends RecursiveTask<Level> {
+        private final long[] frontier;
+        private final int from;
+        private final int to;
+        private final AtomicBitSet visited;
+        private final Node.Type type;
+        private final boolean bounded;
+        private final long maxTimestamp;
+
+        Expand(long[] frontier, int from, int to, AtomicBitSet visited, Node.Type type, boolean bounded,
+               long maxTimestamp) {
+            this.frontier = frontier;
+            this.from = from;
+            this.to = to;
+            this.visited = visited;
+            this.type = type;
+            this.bounded = bounded;
+            this.maxTimestamp = maxTimestamp;
+        }
+
+        @Override
+        protected Level compute() {
+            if (to - from > CHUNK_SIZE) {
+                int mid = (from + to) >>> 1;
+                Expand left = new Expand(frontier, from, mid, visited, type, bounded, maxTimestamp);
+                left.fork();
+                Level right = new Expand(frontier, mid, to, visited, type, bounded, maxTimestamp).compute();
+                return left.join().merge(right);
+            }
+            SwhBidirectionalGraph g = graphs.get();
+            Level level = new Level();
+            for (int i = from; i < to; i++) {
+                LazyLongIterator predecessors = g.predecessors(frontier[i]);
+                long parent;
+                while ((parent = predecessors.nextLong()) != -1) {
+                    if (!visited.add(parent, level.touched)) {
+                        continue;
+                    }
+                    Node.Type parentType = g.getNodeType(parent);
+                    if (parentType == type && (!bounded || hasTimestampBefore(g, parent, maxTimestamp))) {
+                        level.matches.add(parent);
+                    }
+                    if (NativeQuery.mayReach(parentType, type)) {
+                        level.next.add(parent);
+                    }
+                }
+            }
+            return level;
+        }
+    }
+
+    private static boolean hasTimestampBefore(SwhBidirectionalGraph g, long revision, long max) {
+        long timestamp = g.getAuthorTimestamp(revision);
+        return timestamp != Long.MIN_VALUE && timestamp < max;
+    }
+
+    /**
+     * Off-heap bitset indexed by {@code long} supporting concurrent {@link #add}. Like {@link VisitedSet}, it is reset
+     * through the list of its touched words, which callers collect from {@link #add} since it is shared by threads.
+     */
+    static class AtomicBitSet {
+        private static final int CHUNK_WORDS_LOG2 = 27; // 1 GiB per chunk
+        private static final long CHUNK_WORDS = 1L << CHUNK_WORDS_LOG2;
+        private static final long CHUNK_MASK = CHUNK_WORDS - 1;
+        private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(long[].class,
+                ByteOrder.nativeOrder());
+
+        private final long words;
+        private final ByteBuffer[] chunks;
+
+        AtomicBitSet(long size) {
+            this.words = (size + 63) >>> 6;
+            int chunkCount = (int) ((words + CHUNK_WORDS - 1) >>> CHUNK_WORDS_LOG2);
+            this.chunks = new ByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long chunkWords = Math.min(CHUNK_WORDS, words - ((long) i << CHUNK_WORDS_LOG2));
+                chunks[i] = ByteBuffer.allocateDirect((int) (chunkWords * Long.BYTES));
+            }
+        }
+
+        /**
+         * @param touched receives the index of the word if this call made it non-zero
+         * @return {@code true} if this call set the bit.
+         */
+        boolean add(long index, LongArrayList touched) {
+            long word = index >>> 6;
+            ByteBuffer chunk = chunks[(int) (word >>> CHUNK_WORDS_LOG2)];
+            int offset = (int) (word & CHUNK_MASK) * Long.BYTES;
+            long mask = 1L << index;
+            long bits;
+            do {
+                bits = (long) WORD.getVolatile(chunk, offset);
+                if ((bits & mask) != 0) {
+                    return false;
+                }
+            } while (!WORD.compareAndSet(chunk, offset, bits, bits | mask));
+            if (bits == 0) {
+                touched.add(word);
+            }
+            return true;
+        }
+
+        /**
+         * Resets the set, given all the words reported by {@link #add} since the last reset. Not thread-safe.
+         */
+        void clear(LongArrayList touched) {
+            if (touched.size() > words / 8) {
+                for (ByteBuffer chunk : chunks) {
+                    for (int offset = 0; offset < chunk.capacity(); offset += Long.BYTES) {
+                        WORD.set(chunk, offset, 0L);
+                    }
+                }
+            } else {
+                for (int i = 0; i < touched.size(); i++) {
+                    long word = touched.getLong(i);
+                    WORD.set(chunks[(int) (word >>> CHUNK_WORDS_LOG2)], (int) (word & CHUNK_MASK) * Long.BYTES, 0L);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Query templates, registered once and run many times with different parameters (see
+ * {@link QuerySession#runPrepared}).
+ * <p>
+ * A template is a Gremlin script whose parameters are script variables, e.g.
+ * {@code g.V(id).repeat(__.in().dedup()).emit(has("author_timestamp", lt(max)))} with the parameters {@code id} and
+ * {@code max}. Each session compiles the script of a template once and evaluates the compiled script with new
+ * bindings on every call, whereas a script with inlined ids is parsed and compiled again for every new id. Scripts can
+ * call the {@link Query} functions through the {@code Query} binding, e.g.
+ * {@code Query.revisionsEarlierThan(id, max).apply(g)}. The {@link NamedQueries} are templates as well, with the
+ * parameters {@code id} and {@code arg}; they are Java code, so there is nothing to compile.
+ * <p>
+ * Templates are shared by all sessions, and so are the statistics of the per-session compiled script caches.
+ */
+public class PreparedQueries {
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+    private final int cacheSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+
+    /**
+     * @param cacheSize the maximum number of compiled scripts kept by each session
+     */
+    public PreparedQueries(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Registers a script template, replacing the previous template with the same name, if any.
+     *
+     * @param parameters the names of the script variables bound on each call
+     * @throws IllegalArgumentException if the name is empty or is the name of a named query.
+     */
+    public Template register(String name, String script, List<String> parameters) {
+        if (name.isEmpty() || NamedQueries.get(name) != null) {
+            throw new IllegalArgumentException("Invalid template name: " + name);
+        }
+        Template template = new Template(name, script, null, List.copyOf(parameters));
+        templates.put(name, template);
+        return template;
+    }
+
+    /**
+     * @return the template with this name, the named query if there is no script template with this name, or
+     * {@code null}.
+     */
+    public Template get(String name) {
+        Template template = templates.get(name);
+        if (template != null) {
+            return template;
+        }
+        NamedQueries.NamedQuery query = NamedQueries.get(name);
+        if (query == null) {
+            return null;
+        }
+        return new Template(name, null, query, query.needsArgument() ? List.of("id", "arg") : List.of("id"));
+    }
+
+    /**
+     * @return the script templates, by name.
+     */
+    public Map<String, Template> templates() {
+        return Collections.unmodifiableMap(new TreeMap<>(templates));
+    }
+
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss(long nanos) {
+        misses.increment();
+        compileNanos.add(nanos);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the total time spent compiling scripts, in nanoseconds.
+     */
+    public long compileNanos() {
+        return compileNanos.sum();
+    }
+
+    public int size() {
+        return templates.size();
+    }
+
+    @Override
+    public String toString() {
+        long h = hits();
+        long m = misses();
+        return String.format("PreparedQueries[templates=%d, hits=%d, misses=%d, hit rate=%.2f%%, mean compile=%.3fms]",
+                size(), h, m, h + m == 0 ? 0 : 100.0 * h / (h + m), m == 0 ? 0 : compileNanos() / 1e6 / m);
+    }
+
+    /**
+     * A registered query: a script, or a {@link NamedQueries.NamedQuery}.
+     */
+    public static class Template {
+        private final String name;
+        private final String script;
+        private final NamedQueries.NamedQuery namedQuery;
+        private final List<String> parameters;
+
+        private Template(String name, String script, NamedQueries.NamedQuery namedQuery, List<String> parameters) {
+            this.name = name;
+            this.script = script;
+            this.namedQuery = namedQuery;
+            this.parameters = parameters;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the script, or {@code null} for a named query.
+         */
+        public String getScript() {
+            return script;
+        }
+
+        /**
+         * @return the named query, or {@code null} for a script.
+         */
+        public NamedQueries.NamedQuery getNamedQuery() {
+            return namedQuery;
+        }
+
+        public List<String> getParameters() {
+            return parameters;
+        }
+
+        @Override
+        public String toString() {
+            return name + "(" + String.join(", ", parameters) + ")";
+        }
+    }
+}
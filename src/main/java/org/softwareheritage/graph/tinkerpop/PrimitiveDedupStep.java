@@ -0,0 +1,147 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.Traverser;
+import org.apache.tinkerpop.gremlin.process.traversal.step.filter.FilterStep;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Global {@code dedup()} keeping primitive ids instead of the traversed objects: a sparse bitset of vertex ids and an
+ * open-addressing set of (out, in) id pairs for edges. Other objects fall back to a {@code HashSet}.
+ * <p>
+ * Installed in place of {@code DedupGlobalStep} by {@link PrimitiveDedupStrategy}. Like {@code DedupGlobalStep}, the
+ * bulk of the first traverser of each element is set to 1.
+ */
+public class PrimitiveDedupStep<S> extends FilterStep<S> {
+
+    private SparseBitSet vertices = new SparseBitSet();
+    private LongPairSet edges = new LongPairSet();
+    private Set<Object> others = new HashSet<>();
+
+    public PrimitiveDedupStep(Traversal.Admin traversal) {
+        super(traversal);
+    }
+
+    @Override
+    protected boolean filter(Traverser.Admin<S> traverser) {
+        if (add(traverser.get())) {
+            traverser.setBulk(1L);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean add(Object object) {
+        if (object instanceof Vertex) {
+            return vertices.add(id((Vertex) object));
+        }
+        if (object instanceof Edge) {
+            Edge edge = (Edge) object;
+            return edges.add(id(edge.outVertex()), id(edge.inVertex()));
+        }
+        return others.add(object);
+    }
+
+    private static long id(Vertex vertex) {
+        return ((Number) vertex.id()).longValue();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        vertices = new SparseBitSet();
+        edges = new LongPairSet();
+        others = new HashSet<>();
+    }
+
+    @Override
+    public PrimitiveDedupStep<S> clone() {
+        PrimitiveDedupStep<S> clone = (PrimitiveDedupStep<S>) super.clone();
+        clone.vertices = new SparseBitSet();
+        clone.edges = new LongPairSet();
+        clone.others = new HashSet<>();
+        return clone;
+    }
+
+    /**
+     * Set of non-negative {@code long}s, stored as 64-bit words keyed by {@code id / 64}: one bit per element in dense
+     * id ranges, about two words per element in sparse ones.
+     */
+    static class SparseBitSet {
+        private final Long2LongOpenHashMap words = new Long2LongOpenHashMap();
+
+        /**
+         * @return whether the id was not in the set.
+         */
+        boolean add(long id) {
+            long key = id >>> 6;
+            long bit = 1L << id;
+            long word = words.get(key);
+            if ((word & bit) != 0) {
+                return false;
+            }
+            words.put(key, word | bit);
+            return true;
+        }
+    }
+
+    /**
+     * Open-addressing set of pairs of non-negative {@code long}s, stored inline in a single array.
+     */
+    static class LongPairSet {
+        private static final long EMPTY = -1;
+
+        private long[] table = newTable(16);
+        private int size;
+
+        private static long[] newTable(int capacity) {
+            long[] table = new long[2 * capacity];
+            Arrays.fill(table, EMPTY);
+            return table;
+        }
+
+        /**
+         * @return whether the pair was not in the set.
+         */
+        boolean add(long a, long b) {
+            if (insert(table, a, b)) {
+                if (++size > table.length / 2 * 3 / 4) {
+                    rehash();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private static boolean insert(long[] table, long a, long b) {
+            int mask = table.length / 2 - 1;
+            int slot = (int) HashCommon.mix(a * 31 + b) & mask;
+            while (table[2 * slot] != EMPTY) {
+                if (table[2 * slot] == a && table[2 * slot + 1] == b) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[2 * slot] = a;
+            table[2 * slot + 1] = b;
+            return true;
+        }
+
+        private void rehash() {
+            long[] newTable = newTable(table.length);
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i] != EMPTY) {
+                    insert(newTable, table[i], table[i + 1]);
+                }
+            }
+            table = newTable;
+        }
+    }
+}
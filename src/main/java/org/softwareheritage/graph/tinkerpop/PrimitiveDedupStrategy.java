@@ -0,0 +1,57 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.TraversalStrategies;
+import org.apache.tinkerpop.gremlin.process.traversal.TraversalStrategy;
+import org.apache.tinkerpop.gremlin.process.traversal.step.filter.DedupGlobalStep;
+import org.apache.tinkerpop.gremlin.process.traversal.strategy.AbstractTraversalStrategy;
+import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalHelper;
+import org.webgraph.tinkerpop.structure.WebGraphGraph;
+
+/**
+ * Replaces the plain global {@code dedup()} steps with {@link PrimitiveDedupStep}, which keeps ids in primitive sets
+ * instead of holding every deduplicated {@code Vertex}/{@code Edge} in a {@code HashSet}.
+ * <p>
+ * Only {@code dedup()} without labels ({@code dedup("a")}) or {@code by()} modulators is replaced, the semantics are
+ * otherwise the same. {@link #register()} installs the strategy for all {@link WebGraphGraph} traversals. Only queries
+ * deduplicating through {@code dedup()} benefit: queries keeping visited elements in other side effects, e.g. with
+ * {@code aggregate()}, have to be written with {@code dedup()} instead (see {@link Query#snapshotRevisions}).
+ * <p>
+ * It is a provider optimization, so it runs after the standard optimizations, which recognize {@code dedup()} by
+ * its step class.
+ */
+public class PrimitiveDedupStrategy extends AbstractTraversalStrategy<TraversalStrategy.ProviderOptimizationStrategy>
+        implements TraversalStrategy.ProviderOptimizationStrategy {
+
+    private static final PrimitiveDedupStrategy INSTANCE = new PrimitiveDedupStrategy();
+
+    private PrimitiveDedupStrategy() {
+    }
+
+    public static PrimitiveDedupStrategy instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the strategy to the default strategies of {@link WebGraphGraph}. Idempotent.
+     */
+    public static synchronized void register() {
+        TraversalStrategies strategies = TraversalStrategies.GlobalCache.getStrategies(WebGraphGraph.class);
+        if (strategies.getStrategy(PrimitiveDedupStrategy.class).isEmpty()) {
+            TraversalStrategies.GlobalCache.registerStrategies(WebGraphGraph.class,
+                    strategies.clone().addStrategies(INSTANCE));
+        }
+    }
+
+    @Override
+    public void apply(Traversal.Admin<?, ?> traversal) {
+        for (DedupGlobalStep<?> step : TraversalHelper.getStepsOfClass(DedupGlobalStep.class, traversal)) {
+            if (!step.getScopeKeys().isEmpty() || !step.getLocalChildren().isEmpty()) {
+                continue;
+            }
+            PrimitiveDedupStep<?> replacement = new PrimitiveDedupStep<>(traversal);
+            step.getLabels().forEach(replacement::addLabel);
+            TraversalHelper.replaceStep(step, replacement, traversal);
+        }
+    }
+}
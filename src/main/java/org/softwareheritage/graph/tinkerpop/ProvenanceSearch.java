@@ -0,0 +1,164 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.big.webgraph.LazyLongIterator;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+/**
+ * Finds a path from a content (or any node) up to an origin, the native version of
+ * {@link Query#contentProvenance(long, long)}.
+ * <p>
+ * With candidate origins, the search is bidirectional: a BFS backward from the content (over the transposed graph)
+ * and a BFS forward from the origins (over the forward graph), expanding the smaller frontier one level at a time,
+ * and stopping as soon as a node is reached from both sides. A popular content has millions of ancestors while the
+ * path to a given origin is short, so meeting in the middle visits a small fraction of either closure. The forward BFS
+ * only expands snapshots, releases and revisions: the backward BFS reaches the directories and contents on the way up
+ * by itself, and meets the forward one at the revision, release or snapshot above them.
+ * <p>
+ * The bidirectional search needs candidate origins. Without them, there is nothing to search forward from, and the
+ * backward BFS stops at the first origin it reaches.
+ * <p>
+ * The search gives up after visiting {@code nodeBudget} nodes or after {@code timeBudgetNanos}. Instances are not
+ * thread-safe.
+ */
+public class ProvenanceSearch {
+
+    public static final long DEFAULT_NODE_BUDGET = 10_000_000;
+    public static final long DEFAULT_TIME_BUDGET_MS = 10_000;
+    private static final long NONE = -1;
+
+    private final SwhBidirectionalGraph graph;
+    private final long nodeBudget;
+    private final long timeBudgetNanos;
+
+    public ProvenanceSearch(SwhBidirectionalGraph graph, long nodeBudget, long timeBudgetNanos) {
+        this.graph = graph;
+        this.nodeBudget = nodeBudget;
+        this.timeBudgetNanos = timeBudgetNanos;
+    }
+
+    public static class Result {
+        /**
+         * The node ids from the content to the origin, or {@code null} if no path was found.
+         */
+        public final long[] path;
+        /**
+         * The number of nodes visited by both sides.
+         */
+        public final long visited;
+        /**
+         * Whether the search stopped on its node or time budget: a path may exist even though none was found.
+         */
+        public final boolean exhausted;
+
+        Result(long[] path, long visited, boolean exhausted) {
+            this.path = path;
+            this.visited = visited;
+            this.exhausted = exhausted;
+        }
+    }
+
+    /**
+     * One side of the search: the nodes it reached, each mapped to the node it was reached from, and its frontier.
+     */
+    private class Side {
+        final boolean backward;
+        final Long2LongOpenHashMap parents = new Long2LongOpenHashMap();
+        LongArrayList frontier = new LongArrayList();
+
+        Side(boolean backward) {
+            this.backward = backward;
+            parents.defaultReturnValue(NONE);
+        }
+
+        void addRoot(long node) {
+            if (!parents.containsKey(node)) {
+                parents.put(node, NONE);
+                frontier.add(node);
+            }
+        }
+
+        LazyLongIterator neighbors(long node) {
+            return backward ? graph.predecessors(node) : graph.successors(node);
+        }
+
+        /**
+         * @return whether the side goes through the node: the forward side stops at directories and contents.
+         */
+        boolean expands(long node) {
+            if (backward) {
+                return true;
+            }
+            Node.Type type = graph.getNodeType(node);
+            return type != Node.Type.DIR && type != Node.Type.CNT;
+        }
+    }
+
+    /**
+     * @param origins the candidate origins, or an empty array to stop at any origin
+     */
+    public Result search(long content, long[] origins) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        Side backward = new Side(true);
+        Side forward = new Side(false);
+        backward.addRoot(content);
+        for (long origin : origins) {
+            forward.addRoot(origin);
+        }
+        boolean anyOrigin = origins.length == 0;
+        if (anyOrigin ? graph.getNodeType(content) == Node.Type.ORI : forward.parents.containsKey(content)) {
+            return new Result(new long[]{content}, 1, false);
+        }
+        long visited = backward.parents.size() + forward.parents.size();
+        while (!backward.frontier.isEmpty() && (anyOrigin || !forward.frontier.isEmpty())) {
+            Side side = anyOrigin || backward.frontier.size() <= forward.frontier.size() ? backward : forward;
+            Side other = side == backward ? forward : backward;
+            LongArrayList next = new LongArrayList();
+            for (int i = 0; i < side.frontier.size(); i++) {
+                long node = side.frontier.getLong(i);
+                LazyLongIterator neighbors = side.neighbors(node);
+                long neighbor;
+                while ((neighbor = neighbors.nextLong()) != -1) {
+                    if (side.parents.containsKey(neighbor) || !side.expands(neighbor)) {
+                        continue;
+                    }
+                    side.parents.put(neighbor, node);
+                    NativeQuery.checkInterrupted(++visited);
+                    if (anyOrigin ? graph.getNodeType(neighbor) == Node.Type.ORI
+                            : other.parents.containsKey(neighbor)) {
+                        return new Result(path(neighbor, backward, forward), visited, false);
+                    }
+                    if (visited >= nodeBudget || ((visited & 1023) == 0 && System.nanoTime() > deadline)) {
+                        return new Result(null, visited, true);
+                    }
+                    next.add(neighbor);
+                }
+            }
+            side.frontier = next;
+        }
+        return new Result(null, visited, false);
+    }
+
+    /**
+     * @return the path from the content to the meeting node (through the backward side), then to the origin (through
+     * the forward side).
+     */
+    private static long[] path(long meet, Side backward, Side forward) {
+        LongArrayList res = new LongArrayList();
+        for (long node = meet; node != NONE; node = backward.parents.get(node)) {
+            res.add(node);
+        }
+        // the backward side maps nodes to their child, towards the content
+        for (int i = 0, j = res.size() - 1; i < j; i++, j--) {
+            long tmp = res.getLong(i);
+            res.set(i, res.getLong(j));
+            res.set(j, tmp);
+        }
+        for (long node = forward.parents.get(meet); node != NONE; node = forward.parents.get(node)) {
+            res.add(node);
+        }
+        return res.toLongArray();
+    }
+}
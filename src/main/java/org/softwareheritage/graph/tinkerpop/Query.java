@@ -1,10 +1,12 @@
 package org.softwareheritage.graph.tinkerpop;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.tinkerpop.gremlin.process.traversal.Order;
 import org.apache.tinkerpop.gremlin.process.traversal.P;
 import org.apache.tinkerpop.gremlin.process.traversal.Path;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.__;
 import org.apache.tinkerpop.gremlin.structure.Direction;
 import org.apache.tinkerpop.gremlin.structure.Edge;
 import org.apache.tinkerpop.gremlin.structure.T;
@@ -45,10 +47,15 @@ public class Query {
      *
      * @param v     the id of the dir/content vertex.
      * @param limit the number of revisions to find.
-     * @return up to {@code limit} earliest revisions, containing the specified dir/content vertex.
+     * @return up to {@code limit} earliest revisions, containing the specified dir/content vertex. Revisions without
+     * an author timestamp come last, as in {@link NativeQuery#earliestContainingRevisions}.
+     * @implNote collects and sorts all containing revisions, see {@link NativeQuery#earliestContainingRevisions} for a
+     * version keeping only the {@code limit} best ones while traversing.
      */
     public static Function<GraphTraversalSource, GraphTraversal<Vertex, Vertex>> earliestContainingRevisions(long v, long limit) {
-        return containingRevisions(v).andThen(g -> g.order().by("author_timestamp", Order.asc).limit(limit));
+        return containingRevisions(v).andThen(g -> g.order()
+                .by(coalesce(values("author_timestamp"), constant(Long.MAX_VALUE)), Order.asc)
+                .limit(limit));
     }
 
     /**
@@ -73,6 +80,44 @@ public class Query {
                      .until(hasLabel("ORI"));
     }
 
+    /**
+     * Finds a path from the provided vertex up to an origin.
+     *
+     * @param content the id of the content (or any) vertex.
+     * @param origin  the id of the origin to reach, or a negative value for any origin.
+     * @return the path from the content to the first origin found.
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, Path>> contentProvenance(long content,
+                                                                                                 long origin) {
+        return g -> g.V(content)
+                     .repeat(in().dedup())
+                     .until(origin < 0 ? hasLabel("ORI") : hasId(origin))
+                     .limit(1)
+                     .path();
+    }
+
+    /**
+     * {@link #originOfRevision(long)} answered from a precomputed index when the vertex is indexed and all its origins
+     * fit in the index, by traversal otherwise.
+     *
+     * @param revision the id of the revision, release or snapshot vertex.
+     * @param index    the origin index of the graph.
+     * @return the origin vertices.
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, Vertex>> originOfRevision(long revision,
+                                                                                                   OriginIndex index) {
+        LongArrayList origins = index.origins(revision);
+        if (origins == null) {
+            return originOfRevision(revision);
+        }
+        Object[] ids = Arrays.stream(origins.toLongArray()).boxed().toArray();
+        return g -> g.V(revision)
+                     .choose(hasLabel("REV", "REL", "SNP"),
+                             // V() without ids would return all vertices
+                             ids.length == 0 ? __.<Vertex>identity().limit(0) : __.V(ids),
+                             repeat(in().dedup()).until(hasLabel("ORI")));
+    }
+
     /**
      * Finds all revisions, which contain the provided dir/content vertex and are older than the given threshold.
      *
@@ -87,6 +132,66 @@ public class Query {
                      .dedup();
     }
 
+    /**
+     * Same as {@link #revisionsEarlierThan(long, long)}, but reads the timestamps straight from the mapped column,
+     * without materializing vertex properties.
+     *
+     * @param v       the id of the dir/content vertex.
+     * @param max     limit for revision time.
+     * @param columns the mapped node properties.
+     * @return all containing revision vertices.
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, Vertex>> revisionsEarlierThan(long v, long max,
+                                                                                                 SwhColumns columns) {
+        return g -> g.V(v)
+                     .repeat(in().dedup())
+                     .emit(hasLabel("REV").filter(columns.where("author_timestamp", timestamp -> timestamp < max)))
+                     .dedup();
+    }
+
+    /**
+     * Finds all revisions authored in a time window, which contain the provided dir/content vertex.
+     *
+     * @param v    the id of the dir/content vertex.
+     * @param from lower limit for revision time, inclusive.
+     * @param to   upper limit for revision time, exclusive.
+     * @return all containing revision vertices.
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, Vertex>> revisionsBetween(long v, long from,
+                                                                                             long to) {
+        return g -> g.V(v)
+                     .repeat(in().dedup())
+                     .emit(hasLabel("REV").has("author_timestamp", P.between(from, to)))
+                     .dedup();
+    }
+
+    /**
+     * Same as {@link #revisionsBetween(long, long, long)}, but does not climb above the vertices without a revision of
+     * the window above them, according to the index.
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, Vertex>> revisionsBetween(long v, long from,
+                                                                                             long to,
+                                                                                             TimestampIndex index) {
+        return g -> g.V(v)
+                     .repeat(in().dedup().filter(t -> index.mayContain((Long) t.get().id(), from, to)))
+                     .emit(hasLabel("REV").has("author_timestamp", P.between(from, to)))
+                     .dedup();
+    }
+
+    /**
+     * Finds all revisions authored at or after a time, which contain the provided dir/content vertex.
+     *
+     * @param v   the id of the dir/content vertex.
+     * @param min lower limit for revision time, inclusive.
+     * @return all containing revision vertices.
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, Vertex>> revisionsAfter(long v, long min) {
+        return g -> g.V(v)
+                     .repeat(in().dedup())
+                     .emit(hasLabel("REV").has("author_timestamp", P.gte(min)))
+                     .dedup();
+    }
+
     /**
      * Returns all paths in a revision/directory subtree.
      * <p>
@@ -103,6 +208,25 @@ public class Query {
                      .path();
     }
 
+    /**
+     * Finds the entries with one of the given names in the subtree of a revision or directory. Names are compared as
+     * label ids on the raw {@code DirEntry[]} labels, see {@link FilenamePredicates}.
+     *
+     * @param root  the revision or directory vertex id
+     * @param names the label ids of the names, e.g. from {@link LabelIndex#exact} or {@link LabelIndex#glob}
+     * @return the distinct file and directory vertices with a matching name
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, Vertex>> filesNamed(long root,
+                                                                                            LabelIndex.LabelSet names) {
+        return g -> g.V(root)
+                     .choose(hasLabel("REV"), out().hasLabel("DIR"))
+                     .emit()
+                     .repeat(out().hasLabel("DIR").dedup())
+                     .outE().has(FilenamePredicates.DIR_ENTRY, FilenamePredicates.named(names))
+                     .inV()
+                     .dedup();
+    }
+
     /**
      * Lists all file paths with permissions in a subtree for a given revision.
      * Similar to {@code ls -lR}
@@ -136,21 +260,36 @@ public class Query {
                      }));
     }
 
+    /**
+     * Same as {@link #recursiveContentPathsWithPermissions(long)}, but lists the revision with a
+     * {@link ContentListing}, which replays the directories found in its {@link SubtreeCache} instead of walking them.
+     *
+     * @param revision the revision vertex id
+     * @param listing  the listing engine of the current thread
+     * @return file paths in a revision subtree
+     */
+    public static Function<GraphTraversalSource, GraphTraversal<Vertex, String>> recursiveContentPathsWithPermissions(
+            long revision, ContentListing listing) {
+        return g -> g.V(revision)
+                     .flatMap(v -> listing.lines((long) v.get().id()).iterator());
+    }
+
     /**
      * Returns all edges under a snapshot, pointing to revisions and releases.
      *
      * @param snapshot the root snapshot
      * @return revisions relationships in snapshot subtree
+     * @implNote visits the snapshot and the revisions/releases reachable from it once ({@code dedup()}), then emits
+     * their edges to revisions and releases. Unlike collecting the edges with {@code aggregate()} into a
+     * {@code HashSet} side effect, this only needs the visited set, which {@link PrimitiveDedupStrategy} keeps as ids.
      */
     public static Function<GraphTraversalSource, GraphTraversal<Vertex, Edge>> snapshotRevisions(long snapshot) {
-        return g -> g.withSideEffect("e", new HashSet<>())
-                     .V(snapshot)
-                     .repeat(outE().where(P.without("e"))
-                                   .where(inV().hasLabel("REV", "REL"))
-                                   .aggregate("e")
-                                   .inV().dedup())
-                     .<Edge>cap("e")
-                     .unfold();
+        return g -> g.V(snapshot)
+                     .emit()
+                     .repeat(out().hasLabel("REV", "REL").dedup())
+                     .dedup()
+                     .outE()
+                     .where(inV().hasLabel("REV", "REL"));
     }
 
     /**
@@ -0,0 +1,255 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import com.martiansoftware.jsap.*;
+import org.apache.tinkerpop.gremlin.process.traversal.Path;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.LongStream;
+
+/**
+ * Checks that the Gremlin and native backends of the named queries return the same results, and measures both.
+ * <p>
+ * Every query with a native implementation is run with both backends on the same start ids, and the result sets are
+ * compared: vertices and native ids are compared by id, edges as {@code (from -> to)} and paths by their vertex ids.
+ * The results of {@code earliestContainingRevision(s)} are compared by author timestamp, since revisions with equal
+ * timestamps may be picked in any order, and the results of {@code contentProvenance} by whether a path was found,
+ * since the backends may find different paths. The mean latency of each query and backend can be saved as a
+ * baseline, and later runs fail if they are slower than the baseline by more than a threshold.
+ * <p>
+ * Exits with status 1 if results differ or latency regressed.
+ */
+public class QueryEquivalence {
+
+    private static final String EXAMPLE = "src/main/resources/example/example";
+    private static final Set<String> COMPARED_BY_TIMESTAMP = Set.of("earliestContainingRevisions",
+            "earliestContainingRevision");
+    private static final Set<String> COMPARED_BY_EXISTENCE = Set.of("contentProvenance");
+
+    private final SwhBidirectionalGraph graph;
+    private final QuerySession session;
+    private final int iters;
+
+    public static void main(String[] args) throws IOException, JSAPException {
+        SimpleJSAP jsap = new SimpleJSAP(QueryEquivalence.class.getName(),
+                "Checks that the Gremlin and native named queries return the same results, and compares their latency.",
+                new Parameter[]{
+                        new FlaggedOption("graphPath", JSAP.STRING_PARSER, EXAMPLE, JSAP.NOT_REQUIRED, 'g', "path",
+                                "The basename of the compressed graph."),
+                        new FlaggedOption("query", JSAP.STRING_PARSER, null, JSAP.NOT_REQUIRED, 'q', "query",
+                                "The query to check. Defaults to all queries with a native implementation.")
+                                .setAllowMultipleDeclarations(true),
+                        new FlaggedOption("samples", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 's', "samples",
+                                "The number of start ids per query, 0 for all nodes of the query's start type."),
+                        new FlaggedOption("seed", JSAP.LONG_PARSER, "0", JSAP.NOT_REQUIRED, 'r', "seed",
+                                "The seed for picking start ids."),
+                        new FlaggedOption("iters", JSAP.INTEGER_PARSER, "3", JSAP.NOT_REQUIRED, 'i', "iters",
+                                "The number of timed runs per start id and backend."),
+                        new FlaggedOption("baseline", JSAP.STRING_PARSER, null, JSAP.NOT_REQUIRED, 'b', "baseline",
+                                "A baseline file saved by --save-baseline to compare the latencies with."),
+                        new FlaggedOption("threshold", JSAP.DOUBLE_PARSER, "0.2", JSAP.NOT_REQUIRED, 't',
+                                "threshold", "The allowed relative slowdown compared to the baseline."),
+                        new FlaggedOption("saveBaseline", JSAP.STRING_PARSER, null, JSAP.NOT_REQUIRED, 'o',
+                                "save-baseline", "Saves the mean latencies of this run to the file."),
+                        new FlaggedOption("ecache", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'e', "ecache",
+                                "The size of edge cache."),
+                        new FlaggedOption("vcache", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'v', "vcache",
+                                "The size of vertex cache.")});
+
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(1);
+        }
+
+        String path = config.getString("graphPath");
+        System.out.println("Loading graph...");
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
+        graph.loadLabelNames();
+        graph.loadAuthorTimestamps();
+        FilenameCache filenames = new FilenameCache(graph, SwhProperties.DEFAULT_FILENAME_CACHE_SIZE);
+
+        List<String> names = config.contains("query")
+                ? Arrays.asList(config.getStringArray("query"))
+                : new ArrayList<>(NamedQueries.names());
+        NodeTypeIndex types = NodeTypeIndex.load(graph);
+        StartPointSampler sampler = new StartPointSampler(graph, config.getLong("seed"), types);
+        int samples = config.getInt("samples");
+
+        Properties latencies = new Properties();
+        boolean ok = true;
+        // the native backend uses the precomputed indexes when present, so that they are checked as well
+        OriginIndex origins = OriginIndex.open(path, graph.numNodes());
+        try (QuerySession.Factory sessionFactory = new QuerySession.Factory(graph, path, filenames, null,
+                config.getInt("vcache"), config.getInt("ecache")).withOriginIndex(origins)
+                .withNodeTypeIndex(types).withTimestampIndex(TimestampIndex.open(path, graph.numNodes()))) {
+            QueryEquivalence check = new QueryEquivalence(graph, sessionFactory.open(), config.getInt("iters"));
+            for (String name : names) {
+                NamedQueries.NamedQuery query = NamedQueries.get(name);
+                if (query == null) {
+                    System.out.println("Unknown query name: " + name);
+                    ok = false;
+                    continue;
+                }
+                if (!query.hasNative()) {
+                    System.out.println(name + ": no native implementation, skipped");
+                    continue;
+                }
+                long[] ids = samples > 0 ? sampler.sample(query.getStartType(), samples)
+                        : allNodes(graph, query.getStartType());
+                ok &= check.check(query, ids, latencies);
+            }
+        }
+
+        if (config.contains("baseline")) {
+            Properties baseline = new Properties();
+            try (Reader in = Files.newBufferedReader(Paths.get(config.getString("baseline")))) {
+                baseline.load(in);
+            }
+            ok &= compare(latencies, baseline, config.getDouble("threshold"));
+        }
+        if (config.contains("saveBaseline")) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(config.getString("saveBaseline")))) {
+                latencies.store(out, "Mean latency in nanoseconds per query and backend, graph: " + path);
+            }
+            System.out.println("Baseline saved at: " + config.getString("saveBaseline"));
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    public QueryEquivalence(SwhBidirectionalGraph graph, QuerySession session, int iters) {
+        this.graph = graph;
+        this.session = session;
+        this.iters = iters;
+    }
+
+    /**
+     * Compares the results of both backends on all start ids, then times them.
+     *
+     * @param latencies receives the mean latency in nanoseconds, as {@code <query>.<backend>}
+     * @return whether the results were equal for all start ids.
+     */
+    public boolean check(NamedQueries.NamedQuery query, long[] ids, Properties latencies) {
+        long arg = query.getDefaultArgument();
+        int mismatches = 0;
+        for (long id : ids) {
+            Set<String> gremlin = results(query, NamedQueries.Backend.GREMLIN, id, arg);
+            Set<String> nativeResults = results(query, NamedQueries.Backend.NATIVE, id, arg);
+            if (!gremlin.equals(nativeResults)) {
+                mismatches++;
+                Set<String> missing = new TreeSet<>(gremlin);
+                missing.removeAll(nativeResults);
+                Set<String> extra = new TreeSet<>(nativeResults);
+                extra.removeAll(gremlin);
+                System.out.printf("%s(%d): MISMATCH, missing from native: %s, only in native: %s%n", query.getName(),
+                        id, missing, extra);
+            }
+        }
+        long gremlinNanos = time(query, NamedQueries.Backend.GREMLIN, ids, arg);
+        long nativeNanos = time(query, NamedQueries.Backend.NATIVE, ids, arg);
+        latencies.setProperty(query.getName() + ".gremlin", Long.toString(gremlinNanos));
+        latencies.setProperty(query.getName() + ".native", Long.toString(nativeNanos));
+        System.out.printf("%s: %d start ids, %d mismatches. Gremlin: %.3fms (%.1f queries/s), "
+                        + "native: %.3fms (%.1f queries/s), native faster by %.2f times%n", query.getName(), ids.length,
+                mismatches, gremlinNanos / 1e6, perSecond(gremlinNanos), nativeNanos / 1e6, perSecond(nativeNanos),
+                1.0 * gremlinNanos / Math.max(1, nativeNanos));
+        return mismatches == 0;
+    }
+
+    private Set<String> results(NamedQueries.NamedQuery query, NamedQueries.Backend backend, long id, long arg) {
+        boolean byTimestamp = COMPARED_BY_TIMESTAMP.contains(query.getName());
+        boolean byExistence = COMPARED_BY_EXISTENCE.contains(query.getName());
+        Set<String> res = new HashSet<>();
+        Iterator<?> it = session.run(query, backend, id, arg);
+        while (it.hasNext()) {
+            String result = normalize(it.next());
+            if (byExistence) {
+                res.add("found");
+                continue;
+            }
+            res.add(byTimestamp ? "author_timestamp=" + graph.getAuthorTimestamp(Long.parseLong(result)) : result);
+        }
+        return res;
+    }
+
+    private static String normalize(Object result) {
+        if (result instanceof Vertex) {
+            return String.valueOf(((Vertex) result).id());
+        }
+        if (result instanceof Edge) {
+            Edge edge = (Edge) result;
+            return String.format("(%s -> %s)", edge.outVertex().id(), edge.inVertex().id());
+        }
+        if (result instanceof Path) {
+            // native paths only hold the vertices, formatted like Arrays.toString(long[])
+            StringJoiner res = new StringJoiner(", ", "[", "]");
+            for (Object element : ((Path) result).objects()) {
+                if (element instanceof Vertex) {
+                    res.add(String.valueOf(((Vertex) element).id()));
+                }
+            }
+            return res.toString();
+        }
+        return String.valueOf(result);
+    }
+
+    /**
+     * @return the mean latency of the query over all start ids, in nanoseconds.
+     */
+    private long time(NamedQueries.NamedQuery query, NamedQueries.Backend backend, long[] ids, long arg) {
+        if (ids.length == 0 || iters <= 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iters; i++) {
+            for (long id : ids) {
+                Iterator<?> it = session.run(query, backend, id, arg);
+                while (it.hasNext()) {
+                    it.next();
+                }
+            }
+        }
+        return (System.nanoTime() - start) / ((long) iters * ids.length);
+    }
+
+    private static double perSecond(long nanos) {
+        return nanos == 0 ? 0 : 1e9 / nanos;
+    }
+
+    /**
+     * @return whether no latency of {@code current} exceeds its baseline by more than {@code threshold}.
+     */
+    static boolean compare(Properties current, Properties baseline, double threshold) {
+        boolean ok = true;
+        for (String key : new TreeSet<>(current.stringPropertyNames())) {
+            String base = baseline.getProperty(key);
+            if (base == null) {
+                continue;
+            }
+            long before = Long.parseLong(base);
+            long after = Long.parseLong(current.getProperty(key));
+            double change = before == 0 ? 0 : 1.0 * (after - before) / before;
+            boolean regressed = change > threshold;
+            System.out.printf("%s: %.3fms -> %.3fms (%+.1f%%)%s%n", key, before / 1e6, after / 1e6, 100 * change,
+                    regressed ? " REGRESSION" : "");
+            ok &= !regressed;
+        }
+        return ok;
+    }
+
+    private static long[] allNodes(SwhBidirectionalGraph graph, Node.Type type) {
+        return LongStream.range(0, graph.numNodes())
+                         .filter(node -> graph.getNodeType(node) == type)
+                         .toArray();
+    }
+}
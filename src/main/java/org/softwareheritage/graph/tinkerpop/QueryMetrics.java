@@ -0,0 +1,291 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Low-overhead metrics of query execution: latency histograms and call counts of the property provider accessors
+ * (see {@link InstrumentedPropertyProvider}), and latency and allocated bytes of whole queries.
+ * <p>
+ * Accessor timings are attributed to the query running on the current thread, if any (see {@link #enter(String)}), so
+ * that e.g. the time spent decoding {@code dir_entry_str} can be read per query. Timers only use
+ * {@link System#nanoTime()} and striped counters; the allocated bytes of the thread are only read when entering and
+ * leaving a query. Metrics can be exported in the Prometheus text format ({@link #writePrometheus(Appendable)}) and
+ * through JMX ({@link #registerMBean(String)}).
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+    private static final String NO_QUERY = "";
+
+    private final ConcurrentHashMap<String, QueryTimers> queries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ThreadLocal<QueryTimers> currentQuery = ThreadLocal.withInitial(() -> timers(NO_QUERY));
+    private final com.sun.management.ThreadMXBean threads;
+
+    public QueryMetrics() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threads = bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    /**
+     * Starts measuring a query on the current thread, until the returned scope is closed. The scope must be closed on
+     * the same thread, after the results have been consumed.
+     */
+    public Scope enter(String query) {
+        return new Scope(query);
+    }
+
+    /**
+     * @return the timer of an accessor, for the query running on the current thread.
+     */
+    public Timer timer(String name) {
+        ConcurrentHashMap<String, Timer> accessors = currentQuery.get().accessors;
+        Timer timer = accessors.get(name);
+        return timer != null ? timer : accessors.computeIfAbsent(name, k -> new Timer());
+    }
+
+    private QueryTimers timers(String query) {
+        return queries.computeIfAbsent(query, k -> new QueryTimers());
+    }
+
+    public void increment(String counter) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Registers a value read on export, e.g. the hit count of a cache.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Registers the statistics of the filename cache as gauges.
+     */
+    public void addFilenameCache(FilenameCache filenames) {
+        gauge("filename_cache_hits", filenames::hits);
+        gauge("filename_cache_misses", filenames::misses);
+        gauge("filename_cache_evictions", filenames::evictions);
+        gauge("filename_cache_size", filenames::size);
+        gauge("filename_cache_pinned", filenames::pinnedCount);
+    }
+
+    /**
+     * Registers the statistics of the directory listing cache as gauges.
+     */
+    public void addSubtreeCache(SubtreeCache subtrees) {
+        gauge("subtree_cache_hits", subtrees::hits);
+        gauge("subtree_cache_misses", subtrees::misses);
+        gauge("subtree_cache_evictions", subtrees::evictions);
+        gauge("subtree_cache_size", subtrees::size);
+        gauge("subtree_cache_bytes", subtrees::bytes);
+    }
+
+    /**
+     * Registers the statistics of the compiled script caches of the prepared queries as gauges.
+     */
+    public void addPreparedQueries(PreparedQueries prepared) {
+        gauge("prepared_cache_hits", prepared::hits);
+        gauge("prepared_cache_misses", prepared::misses);
+        gauge("prepared_compile_nanos", prepared::compileNanos);
+        gauge("prepared_templates", prepared::size);
+    }
+
+    private long allocatedBytes() {
+        return threads != null ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        out.append("# TYPE swh_graph_query_seconds histogram\n");
+        out.append("# TYPE swh_graph_query_allocated_bytes_total counter\n");
+        out.append("# TYPE swh_graph_property_seconds histogram\n");
+        for (Map.Entry<String, QueryTimers> query : new TreeMap<>(queries).entrySet()) {
+            String labels = "query=\"" + escape(query.getKey()) + "\"";
+            Timer timer = query.getValue().query;
+            if (timer.count() > 0) {
+                timer.writePrometheus(out, "swh_graph_query_seconds", labels);
+                out.append("swh_graph_query_allocated_bytes_total{").append(labels).append("} ")
+                   .append(Long.toString(timer.allocatedBytes.sum())).append('\n');
+            }
+            for (Map.Entry<String, Timer> accessor : new TreeMap<>(query.getValue().accessors).entrySet()) {
+                accessor.getValue().writePrometheus(out, "swh_graph_property_seconds",
+                        labels + ",accessor=\"" + escape(accessor.getKey()) + "\"");
+            }
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            out.append("# TYPE swh_graph_").append(entry.getKey()).append("_total counter\n");
+            out.append("swh_graph_").append(entry.getKey()).append("_total ")
+               .append(Long.toString(entry.getValue().sum())).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            out.append("# TYPE swh_graph_").append(entry.getKey()).append(" gauge\n");
+            out.append("swh_graph_").append(entry.getKey()).append(' ')
+               .append(Long.toString(entry.getValue().getAsLong())).append('\n');
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Registers the metrics as a platform MBean, e.g. {@code org.softwareheritage.graph:type=QueryMetrics}.
+     */
+    public void registerMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> res = collect(timer -> timer.count.sum());
+        counters.forEach((key, counter) -> res.put(key, counter.sum()));
+        return res;
+    }
+
+    @Override
+    public Map<String, Long> getTotalNanos() {
+        return collect(timer -> timer.totalNanos.sum());
+    }
+
+    @Override
+    public Map<String, Long> getAllocatedBytes() {
+        Map<String, Long> res = new TreeMap<>();
+        queries.forEach((query, timers) -> {
+            if (timers.query.count() > 0) {
+                res.put(query, timers.query.allocatedBytes.sum());
+            }
+        });
+        return res;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> res = new TreeMap<>();
+        gauges.forEach((key, gauge) -> res.put(key, gauge.getAsLong()));
+        return res;
+    }
+
+    @Override
+    public void reset() {
+        // timers are kept, since threads hold on to the timers of their current query
+        queries.values().forEach(timers -> {
+            timers.query.reset();
+            timers.accessors.values().forEach(Timer::reset);
+        });
+        counters.values().forEach(LongAdder::reset);
+    }
+
+    private Map<String, Long> collect(ToLongFunction<Timer> value) {
+        Map<String, Long> res = new TreeMap<>();
+        queries.forEach((query, timers) -> {
+            if (timers.query.count() > 0) {
+                res.put(query, value.applyAsLong(timers.query));
+            }
+            timers.accessors.forEach((accessor, timer) ->
+                    res.put(query.isEmpty() ? accessor : query + "/" + accessor, value.applyAsLong(timer)));
+        });
+        return res;
+    }
+
+    private static class QueryTimers {
+        final Timer query = new Timer();
+        final ConcurrentHashMap<String, Timer> accessors = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * A call counter and latency histogram with power-of-two nanosecond buckets.
+     */
+    public static class Timer {
+        private static final int BUCKETS = 40;
+
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+            histogram.incrementAndGet(bucket);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            allocatedBytes.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+
+        void writePrometheus(Appendable out, String metric, String labels) throws IOException {
+            long cumulative = 0;
+            long total = count.sum();
+            // always write every bucket, Prometheus expects the same series at each scrape
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += histogram.get(i);
+                // bucket i holds durations below 2^i ns
+                out.append(metric).append("_bucket{").append(labels).append(",le=\"")
+                   .append(Double.toString((1L << i) / 1e9)).append("\"} ").append(Long.toString(cumulative))
+                   .append('\n');
+            }
+            // the count and the histogram are not updated atomically, keep the buckets cumulative
+            out.append(metric).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+               .append(Long.toString(Math.max(total, cumulative))).append('\n');
+            out.append(metric).append("_sum{").append(labels).append("} ")
+               .append(Double.toString(totalNanos.sum() / 1e9)).append('\n');
+            out.append(metric).append("_count{").append(labels).append("} ").append(Long.toString(total))
+               .append('\n');
+        }
+    }
+
+    /**
+     * A query being measured on the current thread.
+     */
+    public class Scope implements AutoCloseable {
+        private final QueryTimers previous;
+        private final Timer timer;
+        private final long start;
+        private final long startAllocated;
+
+        private Scope(String query) {
+            previous = currentQuery.get();
+            QueryTimers timers = timers(query);
+            currentQuery.set(timers);
+            timer = timers.query;
+            startAllocated = allocatedBytes();
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            timer.record(System.nanoTime() - start);
+            timer.allocatedBytes.add(allocatedBytes() - startAllocated);
+            currentQuery.set(previous);
+        }
+    }
+}
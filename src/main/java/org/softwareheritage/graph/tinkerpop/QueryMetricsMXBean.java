@@ -0,0 +1,20 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link QueryMetrics}. Keys are {@code <query>}, {@code <query>/<accessor>}, or {@code <accessor>} for
+ * accesses made outside of a query.
+ */
+public interface QueryMetricsMXBean {
+
+    Map<String, Long> getCounts();
+
+    Map<String, Long> getTotalNanos();
+
+    Map<String, Long> getAllocatedBytes();
+
+    Map<String, Long> getGauges();
+
+    void reset();
+}
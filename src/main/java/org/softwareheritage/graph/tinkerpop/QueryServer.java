@@ -0,0 +1,522 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import com.martiansoftware.jsap.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+import org.webgraph.tinkerpop.structure.WebGraphGraph;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Long-running query server: loads the graph once and answers Gremlin and named {@link Query} requests over HTTP.
+ * <p>
+ * Endpoints:
+ * <ul>
+ *     <li>{@code POST /gremlin} - the request body is a Gremlin query, e.g. {@code g.V(1).out()}</li>
+ *     <li>{@code GET /query/<name>?id=<id>[&arg=<arg>][&backend=gremlin|native]} - runs the named query (see
+ *     {@link NamedQueries}), the start node being a node id or a SWHID</li>
+ *     <li>{@code POST /resolve} - the request body is a list of SWHIDs, one per line, resolved in one batch to their
+ *     node ids ({@code -1} for unknown SWHIDs), in the same order</li>
+ *     <li>{@code POST /prepare/<name>[?params=<p1>,<p2>...]} - registers the request body, a Gremlin script using the
+ *     parameters as variables, as a prepared query (see {@link PreparedQueries})</li>
+ *     <li>{@code GET /prepared/<name>?<p1>=<v1>...[&backend=gremlin|native]} - runs a prepared query or a named query
+ *     with the given parameter values, which are node ids, SWHIDs, numbers or strings; {@code GET /prepared} lists the
+ *     prepared queries</li>
+ *     <li>{@code GET /metrics} - query and property access metrics in the Prometheus text format (see
+ *     {@link QueryMetrics}), also exported through JMX</li>
+ * </ul>
+ * Results are written one per line. With a {@code format=ndjson|csv|binary|swhid|text} parameter (also accepted on
+ * {@code /gremlin}), the results are instead streamed through a {@link ResultSink} while the query runs, in a chunked
+ * response: the worker is paced by the client, and neither side holds the whole result. A streamed query that fails
+ * or times out after its first result is cut short, since its status has already been sent. Each worker thread owns
+ * a copy of the graph and its own {@link WebGraphGraph}, so vertex/edge caches stay warm between requests without
+ * being shared across threads.
+ */
+public class QueryServer {
+
+    private static final String EXAMPLE = "src/main/resources/example/example";
+    private static final String MBEAN_NAME = "org.softwareheritage.graph:type=QueryMetrics";
+
+    private final QuerySession.Factory sessionFactory;
+    private final long timeoutMs;
+    private final NamedQueries.Backend defaultBackend;
+    private final ThreadPoolExecutor workers;
+    private final ThreadLocal<QuerySession> sessions;
+    private final QueryMetrics metrics;
+    private HttpServer http;
+
+    public static void main(String[] args) throws IOException, JSAPException {
+        SimpleJSAP jsap = new SimpleJSAP(QueryServer.class.getName(),
+                "Server to load and query a compressed graph representation of Software Heritage archive.",
+                new Parameter[]{
+                        new FlaggedOption("graphPath", JSAP.STRING_PARSER, EXAMPLE, JSAP.NOT_REQUIRED, 'g', "path",
+                                "The basename of the compressed graph."),
+                        new FlaggedOption("port", JSAP.INTEGER_PARSER, "8080", JSAP.NOT_REQUIRED, 'P', "port",
+                                "The port to listen on."),
+                        new FlaggedOption("threads", JSAP.INTEGER_PARSER,
+                                String.valueOf(Runtime.getRuntime().availableProcessors()), JSAP.NOT_REQUIRED, 't',
+                                "threads", "The number of worker threads."),
+                        new FlaggedOption("queue", JSAP.INTEGER_PARSER, "100", JSAP.NOT_REQUIRED, 'Q', "queue",
+                                "The maximum number of requests waiting for a worker."),
+                        new FlaggedOption("timeout", JSAP.LONG_PARSER, "60000", JSAP.NOT_REQUIRED, 'T', "timeout",
+                                "The per-request timeout in milliseconds."),
+                        new FlaggedOption("filenameCache", JSAP.INTEGER_PARSER,
+                                String.valueOf(SwhProperties.DEFAULT_FILENAME_CACHE_SIZE), JSAP.NOT_REQUIRED, 'f',
+                                "filename-cache", "The number of decoded filenames to cache."),
+                        new FlaggedOption("pinFilenames", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 'n',
+                                "pin-filenames", "The number of most frequent filenames to pin in the cache at startup."),
+                        new FlaggedOption("messageCache", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED,
+                                JSAP.NO_SHORTFLAG, "message-cache",
+                                "The number of decoded messages to cache, 0 to disable the cache."),
+                        new FlaggedOption("backend", JSAP.STRING_PARSER, "gremlin", JSAP.NOT_REQUIRED, 'b', "backend",
+                                "The default backend of named queries: gremlin | native."),
+                        new FlaggedOption("parallelism", JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED, 'j',
+                                "parallelism", "The number of threads of the native backward searches, 1 to run them"
+                                + " sequentially in the request worker."),
+                        new FlaggedOption("preparedCache", JSAP.INTEGER_PARSER,
+                                String.valueOf(PreparedQueries.DEFAULT_CACHE_SIZE), JSAP.NOT_REQUIRED, 'C',
+                                "prepared-cache", "The number of compiled prepared query scripts kept per worker."),
+                        new FlaggedOption("subtreeCache", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, 's',
+                                "subtree-cache", "The size in MiB of the cache of directory listings shared by the "
+                                + "native recursiveContentPathsWithPermissions, 0 to disable it."),
+                        new Switch("monotonicHistory", JSAP.NO_SHORTFLAG, "assume-monotonic-history",
+                                "Makes the native earliestContainingRevisions stop climbing above revisions which "
+                                + "cannot be among the earliest ones, assuming revisions are never older than their "
+                                + "parents. Faster, but may miss revisions."),
+                        new FlaggedOption("ecache", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'e', "ecache",
+                                "The size of edge cache."),
+                        new FlaggedOption("vcache", JSAP.INTEGER_PARSER, "100000", JSAP.NOT_REQUIRED, 'v', "vcache",
+                                "The size of vertex cache.")});
+
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(1);
+        }
+
+        String path = config.getString("graphPath");
+        System.out.println("Loading graph...");
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
+        graph.loadLabelNames();
+        graph.loadAuthorTimestamps();
+        FilenameCache filenames = new FilenameCache(graph, config.getInt("filenameCache"));
+        if (config.getInt("pinFilenames") > 0) {
+            filenames.pinMostFrequent(config.getInt("pinFilenames"));
+        }
+        int parallelism = config.getInt("parallelism");
+        ParallelQuery parallel = parallelism > 1 ? new ParallelQuery(graph, parallelism) : null;
+        QueryMetrics metrics = new QueryMetrics();
+        metrics.addFilenameCache(filenames);
+        try {
+            metrics.registerMBean(MBEAN_NAME);
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MBean: " + e);
+        }
+        SubtreeCache subtrees = null;
+        if (config.getInt("subtreeCache") > 0) {
+            subtrees = new SubtreeCache(config.getInt("subtreeCache") * (1L << 20), SubtreeCache.DEFAULT_MIN_ENTRIES);
+            metrics.addSubtreeCache(subtrees);
+        }
+        OriginIndex origins = OriginIndex.open(path, graph.numNodes());
+        if (origins != null) {
+            System.out.println("Loaded origin index with " + origins.slots() + " slots per node");
+        }
+        TimestampIndex timestamps = TimestampIndex.open(path, graph.numNodes());
+        if (timestamps != null) {
+            System.out.println("Loaded timestamp index");
+        }
+        QuerySession.Factory sessionFactory = new QuerySession.Factory(graph, path, filenames, parallel,
+                config.getInt("vcache"), config.getInt("ecache")).withMetrics(metrics).withSubtreeCache(subtrees)
+                .withOriginIndex(origins).withNodeTypeIndex(NodeTypeIndex.load(graph))
+                .withSwhidIndex(SwhidIndex.open(path)).withTimestampIndex(timestamps)
+                .withPreparedQueries(new PreparedQueries(config.getInt("preparedCache")))
+                .withMonotonicHistory(config.getBoolean("monotonicHistory"))
+                .withMessageCache(config.getInt("messageCache"));
+        metrics.addPreparedQueries(sessionFactory.getPreparedQueries());
+        QueryServer server = new QueryServer(sessionFactory, metrics, config.getInt("threads"),
+                config.getInt("queue"), config.getLong("timeout"),
+                NamedQueries.Backend.valueOf(config.getString("backend").toUpperCase()));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start(config.getInt("port"));
+        System.out.println("Listening on port " + config.getInt("port"));
+    }
+
+    /**
+     * @param sessionFactory the factory of the per-worker sessions, closed on {@link #stop()}.
+     * @param metrics        the metrics the queries are recorded in, should also be given to the session factory
+     */
+    public QueryServer(QuerySession.Factory sessionFactory, QueryMetrics metrics, int threads, int queueSize,
+                       long timeoutMs, NamedQueries.Backend defaultBackend) {
+        this.sessionFactory = sessionFactory;
+        this.metrics = metrics;
+        this.timeoutMs = timeoutMs;
+        this.defaultBackend = defaultBackend;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+        this.sessions = sessionFactory.perThread();
+    }
+
+    public void start(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/gremlin", this::handleGremlin);
+        http.createContext("/query/", this::handleNamedQuery);
+        http.createContext("/resolve", this::handleResolve);
+        http.createContext("/prepare/", this::handlePrepare);
+        http.createContext("/prepared", this::handlePrepared);
+        http.createContext("/metrics", this::handleMetrics);
+        // request parsing is cheap, the actual work is done in the bounded worker pool
+        http.setExecutor(Executors.newCachedThreadPool());
+        http.start();
+    }
+
+    /**
+     * Stops accepting requests, waits for the running ones to finish (up to the request timeout) and closes the
+     * graphs.
+     */
+    public void stop() {
+        System.out.println("Shutting down...");
+        if (http != null) {
+            // stops accepting connections and waits for the in-flight exchanges
+            http.stop((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeoutMs)));
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        sessionFactory.close();
+    }
+
+    private void handleGremlin(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Expected POST with a Gremlin query as body");
+            return;
+        }
+        String query = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+        execute(exchange, "gremlin", params.get("format"), () -> sessions.get().eval(query));
+    }
+
+    private void handleResolve(HttpExchange exchange) throws IOException {
+        SwhidIndex swhids = sessionFactory.getSwhidIndex();
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Expected POST with one SWHID per line as body");
+            return;
+        }
+        if (swhids == null) {
+            respond(exchange, 404, "SWHID resolution is not available");
+            return;
+        }
+        List<String> lines = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.US_ASCII)
+                .strip().lines().map(String::strip).collect(Collectors.toList());
+        Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+        execute(exchange, "resolve", params.get("format"),
+                () -> LongArrayList.wrap(swhids.resolve(lines)).iterator());
+    }
+
+    private void handlePrepare(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Expected POST with a Gremlin script as body");
+            return;
+        }
+        String name = exchange.getRequestURI().getPath().substring("/prepare/".length());
+        String script = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String params = parseParams(exchange.getRequestURI().getRawQuery()).getOrDefault("params", "");
+        List<String> parameters = params.isEmpty() ? List.of() : List.of(params.split(","));
+        PreparedQueries prepared = sessionFactory.getPreparedQueries();
+        try {
+            PreparedQueries.Template template = prepared.register(name, script, parameters);
+            respond(exchange, 200, "Prepared " + template + "\n");
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+        }
+    }
+
+    private void handlePrepared(HttpExchange exchange) throws IOException {
+        PreparedQueries prepared = sessionFactory.getPreparedQueries();
+        URI uri = exchange.getRequestURI();
+        String name = uri.getPath().startsWith("/prepared/") ? uri.getPath().substring("/prepared/".length()) : "";
+        if (name.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            prepared.templates().values().forEach(template -> sb.append(template).append('\n'));
+            respond(exchange, 200, sb.toString());
+            return;
+        }
+        PreparedQueries.Template template = prepared.get(name);
+        if (template == null) {
+            respond(exchange, 404, "Unknown prepared query: " + name);
+            return;
+        }
+        Map<String, String> params = parseParams(uri.getRawQuery());
+        Map<String, Object> values = new HashMap<>();
+        try {
+            for (String parameter : template.getParameters()) {
+                if (!params.containsKey(parameter)) {
+                    respond(exchange, 400, "Query " + template + " requires the '" + parameter + "' parameter");
+                    return;
+                }
+                values.put(parameter, parameterValue(params.get(parameter)));
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 404, e.getMessage());
+            return;
+        }
+        NamedQueries.Backend backend;
+        try {
+            backend = params.containsKey("backend")
+                    ? NamedQueries.Backend.valueOf(params.get("backend").toUpperCase())
+                    : defaultBackend;
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "Unknown backend: " + params.get("backend"));
+            return;
+        }
+        NamedQueries.NamedQuery query = template.getNamedQuery();
+        if (query != null) {
+            if (!values.values().stream().allMatch(value -> value instanceof Long)) {
+                respond(exchange, 400, "Query " + template + " expects a node id or SWHID and numeric parameters");
+                return;
+            }
+            if (backend == NamedQueries.Backend.NATIVE && !query.hasNative()) {
+                respond(exchange, 400, "Query " + name + " has no native implementation");
+                return;
+            }
+        }
+        String label = "prepared/" + name + (query != null ? "/" + backend.toString().toLowerCase() : "");
+        execute(exchange, label, params.get("format"), () -> sessions.get().runPrepared(template, backend, values));
+    }
+
+    /**
+     * @return the value of a parameter of a prepared query: the node id of a SWHID, a number, or the string itself.
+     * @throws IllegalArgumentException if the SWHID is not in the graph
+     */
+    private Object parameterValue(String value) {
+        SwhidIndex swhids = sessionFactory.getSwhidIndex();
+        if (SwhidIndex.isSwhid(value) && swhids != null) {
+            return swhids.id(value);
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        metrics.writePrometheus(sb);
+        respond(exchange, 200, sb.toString());
+    }
+
+    private void handleNamedQuery(HttpExchange exchange) throws IOException {
+        URI uri = exchange.getRequestURI();
+        String name = uri.getPath().substring("/query/".length());
+        NamedQueries.NamedQuery query = NamedQueries.get(name);
+        if (query == null) {
+            respond(exchange, 404, "Unknown query name: " + name + ". Available: " + NamedQueries.names());
+            return;
+        }
+        Map<String, String> params = parseParams(uri.getRawQuery());
+        String idParam = params.getOrDefault("id", "");
+        SwhidIndex swhids = sessionFactory.getSwhidIndex();
+        long start;
+        long arg;
+        try {
+            if (SwhidIndex.isSwhid(idParam) && swhids != null) {
+                start = swhids.resolve(idParam);
+                if (start == -1) {
+                    respond(exchange, 404, "Unknown SWHID: " + idParam);
+                    return;
+                }
+            } else {
+                start = Long.parseLong(idParam);
+            }
+            arg = params.containsKey("arg") ? Long.parseLong(params.get("arg")) : 1;
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "Expected a node id or SWHID 'id' and an optional numeric 'arg' parameter");
+            return;
+        }
+        long id = start;
+        if (query.needsArgument() && !params.containsKey("arg")) {
+            respond(exchange, 400, "Query " + name + " requires the 'arg' parameter");
+            return;
+        }
+        NamedQueries.Backend backend;
+        try {
+            backend = params.containsKey("backend")
+                    ? NamedQueries.Backend.valueOf(params.get("backend").toUpperCase())
+                    : defaultBackend;
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "Unknown backend: " + params.get("backend"));
+            return;
+        }
+        if (backend == NamedQueries.Backend.NATIVE && !query.hasNative()) {
+            respond(exchange, 400, "Query " + name + " has no native implementation");
+            return;
+        }
+        execute(exchange, name + "/" + backend.toString().toLowerCase(), params.get("format"),
+                () -> sessions.get().run(query, backend, id, arg));
+    }
+
+    /**
+     * @param label  the name the query is recorded under in the metrics
+     * @param format the {@link ResultSink.Format} to stream the results in, or {@code null} to send them at once
+     */
+    private void execute(HttpExchange exchange, String label, String format, Callable<Iterator<?>> task)
+            throws IOException {
+        if (format != null) {
+            ResultSink.Format sinkFormat;
+            try {
+                sinkFormat = ResultSink.Format.valueOf(format.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "Unknown format: " + format);
+                return;
+            }
+            stream(exchange, label, sinkFormat, task);
+            return;
+        }
+        Future<String> result;
+        try {
+            result = workers.submit(() -> {
+                try (QueryMetrics.Scope scope = metrics.enter(label)) {
+                    StringBuilder sb = new StringBuilder();
+                    Iterator<?> it = task.call();
+                    while (it.hasNext()) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedException();
+                        }
+                        sb.append(it.next()).append('\n');
+                    }
+                    return sb.toString();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.increment("requests_rejected");
+            respond(exchange, 503, "Too many pending requests");
+            return;
+        }
+        try {
+            respond(exchange, 200, result.get(timeoutMs, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            metrics.increment("requests_timed_out");
+            respond(exchange, 504, "Query timed out after " + timeoutMs + "ms");
+        } catch (ExecutionException e) {
+            metrics.increment("requests_failed");
+            respond(exchange, 500, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Server is shutting down");
+        }
+    }
+
+    /**
+     * Runs the query on a worker which writes its results straight to the response. The status is sent with the first
+     * result, so errors before it are still reported. The exchange belongs to whichever thread claims it first: once
+     * the worker has claimed it, only the worker writes to it and closes it, and a cancelled worker stops at the next
+     * result.
+     */
+    private void stream(HttpExchange exchange, String label, ResultSink.Format format, Callable<Iterator<?>> task)
+            throws IOException {
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<Long> result;
+        try {
+            result = workers.submit(() -> {
+                try (QueryMetrics.Scope scope = metrics.enter(label)) {
+                    QuerySession session = sessions.get();
+                    Iterator<?> it = task.call();
+                    it.hasNext();
+                    if (!claimed.compareAndSet(false, true)) {
+                        // the request thread already answered
+                        return 0L;
+                    }
+                    try {
+                        boolean binary = format == ResultSink.Format.BINARY || format == ResultSink.Format.SWHID;
+                        exchange.getResponseHeaders().set("Content-Type", binary
+                                ? "application/octet-stream" : "text/plain; charset=utf-8");
+                        exchange.sendResponseHeaders(200, 0);
+                        try (ResultSink sink = new ResultSink(Channels.newChannel(exchange.getResponseBody()), format,
+                                session.getSwhGraph(), ResultSink.DEFAULT_BUFFER_SIZE)
+                                .withSwhidIndex(session.getSwhidIndex())) {
+                            while (it.hasNext()) {
+                                if (Thread.currentThread().isInterrupted()) {
+                                    throw new InterruptedException();
+                                }
+                                sink.write(it.next());
+                            }
+                            return sink.count();
+                        }
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.increment("requests_rejected");
+            respond(exchange, 503, "Too many pending requests");
+            return;
+        }
+        try {
+            result.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            metrics.increment("requests_timed_out");
+            if (claimed.compareAndSet(false, true)) {
+                respond(exchange, 504, "Query timed out after " + timeoutMs + "ms");
+            }
+        } catch (ExecutionException e) {
+            metrics.increment("requests_failed");
+            if (claimed.compareAndSet(false, true)) {
+                respond(exchange, 500, String.valueOf(e.getCause()));
+            }
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            if (claimed.compareAndSet(false, true)) {
+                respond(exchange, 503, "Server is shutting down");
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+}
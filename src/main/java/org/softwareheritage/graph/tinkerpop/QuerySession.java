@@ -0,0 +1,337 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import org.apache.tinkerpop.gremlin.groovy.jsr223.GremlinGroovyScriptEngine;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+import org.webgraph.tinkerpop.structure.WebGraphGraph;
+import org.webgraph.tinkerpop.structure.provider.WebGraphPropertyProvider;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Per-thread query state: a copy of the graph with its own {@link WebGraphGraph} (and its vertex/edge caches),
+ * {@link NativeQuery} engine and script engine, with the scripts of the {@link PreparedQueries} it compiled. Sessions
+ * are created by a {@link Factory}, which holds the state shared between threads.
+ */
+public class QuerySession implements AutoCloseable {
+
+    private final SwhBidirectionalGraph swhGraph;
+    private final WebGraphGraph graph;
+    private final NativeQuery nativeQuery;
+    private final SwhidIndex swhids;
+    private final PreparedQueries prepared;
+    private final Map<String, CompiledScript> compiled;
+    private GremlinGroovyScriptEngine engine;
+
+    private QuerySession(Factory factory, SwhBidirectionalGraph swhGraph) throws IOException {
+        this.swhGraph = swhGraph;
+        this.swhids = factory.swhids;
+        this.prepared = factory.prepared;
+        // least recently used scripts first
+        this.compiled = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > prepared.cacheSize();
+            }
+        };
+        this.nativeQuery = new NativeQuery(swhGraph, factory.visitedSets, factory.parallel, factory.subtrees,
+                factory.origins, factory.timestamps);
+        nativeQuery.setAssumeMonotonicHistory(factory.monotonicHistory);
+        WebGraphPropertyProvider provider = SwhProperties.withEdgeLabels(swhGraph, factory.filenames,
+                factory.messageCacheSize);
+        if (factory.metrics != null) {
+            provider = new InstrumentedPropertyProvider(provider, factory.metrics);
+        }
+        this.graph = WebGraphGraph.open(swhGraph, provider, factory.path, factory.vcache, factory.ecache);
+        if (factory.types != null) {
+            TypeIndexStrategy.register(graph, factory.types);
+        }
+    }
+
+    public WebGraphGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return the session's copy of the graph.
+     */
+    public SwhBidirectionalGraph getSwhGraph() {
+        return swhGraph;
+    }
+
+    public NativeQuery getNativeQuery() {
+        return nativeQuery;
+    }
+
+    /**
+     * @return the SWHID index shared by the sessions, or {@code null}.
+     */
+    public SwhidIndex getSwhidIndex() {
+        return swhids;
+    }
+
+    /**
+     * Runs a named query with the given backend.
+     */
+    public Iterator<?> run(NamedQueries.NamedQuery query, NamedQueries.Backend backend, long id, long arg) {
+        if (backend == NamedQueries.Backend.NATIVE) {
+            return query.runNative(nativeQuery, id, arg);
+        }
+        return query.gremlin(id, arg).apply(graph.traversal());
+    }
+
+    /**
+     * Evaluates a Gremlin script, with the traversal source bound to {@code g}, the session's
+     * {@link ContentListing} to {@code listing}, e.g.
+     * {@code g.V(1).flatMap { listing.lines(it.get().id()).iterator() }}, the {@link Query} class to {@code Query}, and
+     * the {@link SwhidIndex}, if any, to {@code swhids}. With the index, the quoted SWHIDs given to {@code V(...)} and
+     * {@code E(...)} are replaced with their node ids, e.g. {@code g.V('swh:1:rev:...').out()}, and
+     * {@code swhids.ids(...)} resolves other SWHIDs.
+     */
+    public Iterator<?> eval(String query) throws Exception {
+        if (swhids != null) {
+            query = swhids.resolveLiterals(query);
+        }
+        Bindings bindings = bindings();
+        return iterator(engine.eval(query, bindings));
+    }
+
+    /**
+     * Runs a prepared query. A script is compiled on the first call of the session (or after being evicted from the
+     * session's cache), then evaluated with the bindings of {@link #eval} and the parameter values. A named query
+     * runs with the given backend.
+     *
+     * @param values the values of the parameters of the template, the start node id as a {@link Number}
+     */
+    public Iterator<?> runPrepared(PreparedQueries.Template template, NamedQueries.Backend backend,
+                                   Map<String, Object> values) throws Exception {
+        NamedQueries.NamedQuery query = template.getNamedQuery();
+        if (query != null) {
+            Number arg = (Number) values.get("arg");
+            return run(query, backend, ((Number) values.get("id")).longValue(),
+                    arg != null ? arg.longValue() : query.getDefaultArgument());
+        }
+        Bindings bindings = bindings();
+        bindings.putAll(values);
+        return iterator(compile(template.getScript()).eval(bindings));
+    }
+
+    private CompiledScript compile(String script) throws ScriptException {
+        CompiledScript res = compiled.get(script);
+        if (res != null) {
+            prepared.recordHit();
+            return res;
+        }
+        long start = System.nanoTime();
+        res = engine.compile(script);
+        prepared.recordMiss(System.nanoTime() - start);
+        compiled.put(script, res);
+        return res;
+    }
+
+    private Bindings bindings() {
+        if (engine == null) {
+            engine = new GremlinGroovyScriptEngine();
+        }
+        Bindings bindings = engine.createBindings();
+        bindings.put("g", graph.traversal());
+        bindings.put("listing", nativeQuery.listing());
+        bindings.put("Query", Query.class);
+        if (swhids != null) {
+            bindings.put("swhids", swhids);
+        }
+        return bindings;
+    }
+
+    private static Iterator<?> iterator(Object result) {
+        if (result instanceof Traversal) {
+            return (Traversal<?, ?>) result;
+        }
+        if (result instanceof Iterator) {
+            return (Iterator<?>) result;
+        }
+        return Collections.singletonList(result).iterator();
+    }
+
+    @Override
+    public void close() throws Exception {
+        graph.close();
+    }
+
+    /**
+     * Creates sessions over copies of a graph, sharing the filename cache, the visited set pool and the parallel
+     * engine.
+     */
+    public static class Factory implements AutoCloseable {
+        private final SwhBidirectionalGraph graph;
+        private final String path;
+        private final FilenameCache filenames;
+        private final ParallelQuery parallel;
+        private final VisitedSet.Pool visitedSets;
+        private final int vcache;
+        private final int ecache;
+        private final Queue<QuerySession> sessions = new ConcurrentLinkedQueue<>();
+        private QueryMetrics metrics;
+        private SubtreeCache subtrees;
+        private OriginIndex origins;
+        private NodeTypeIndex types;
+        private SwhidIndex swhids;
+        private TimestampIndex timestamps;
+        private PreparedQueries prepared = new PreparedQueries(PreparedQueries.DEFAULT_CACHE_SIZE);
+        private boolean monotonicHistory;
+        private int messageCacheSize;
+
+        /**
+         * @param parallel the engine for parallel native searches, or {@code null}. It is closed with the factory.
+         */
+        public Factory(SwhBidirectionalGraph graph, String path, FilenameCache filenames, ParallelQuery parallel,
+                       int vcache, int ecache) {
+            this.graph = graph;
+            this.path = path;
+            this.filenames = filenames;
+            this.parallel = parallel;
+            this.visitedSets = new VisitedSet.Pool(graph.numNodes());
+            this.vcache = vcache;
+            this.ecache = ecache;
+            PrimitiveDedupStrategy.register();
+        }
+
+        /**
+         * Records the property accesses of the sessions opened from now on in {@code metrics}.
+         */
+        public Factory withMetrics(QueryMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Shares {@code subtrees} between the directory listings of the sessions opened from now on.
+         */
+        public Factory withSubtreeCache(SubtreeCache subtrees) {
+            this.subtrees = subtrees;
+            return this;
+        }
+
+        /**
+         * Answers the native {@code originOfRevision} of the sessions opened from now on from {@code origins}, if not
+         * {@code null}.
+         */
+        public Factory withOriginIndex(OriginIndex origins) {
+            this.origins = origins;
+            return this;
+        }
+
+        /**
+         * Lists the nodes of {@code V().hasLabel(...)} of the sessions opened from now on with {@code types}, if not
+         * {@code null}.
+         */
+        public Factory withNodeTypeIndex(NodeTypeIndex types) {
+            this.types = types;
+            return this;
+        }
+
+        /**
+         * Prunes the native time-bounded searches of the sessions opened from now on with {@code timestamps}, if not
+         * {@code null}.
+         */
+        public Factory withTimestampIndex(TimestampIndex timestamps) {
+            this.timestamps = timestamps;
+            return this;
+        }
+
+        /**
+         * Binds {@code swhids} in the scripts of the sessions opened from now on, if not {@code null}.
+         */
+        public Factory withSwhidIndex(SwhidIndex swhids) {
+            this.swhids = swhids;
+            return this;
+        }
+
+        /**
+         * @return the SWHID index given to {@link #withSwhidIndex}, or {@code null}.
+         */
+        public SwhidIndex getSwhidIndex() {
+            return swhids;
+        }
+
+        /**
+         * Makes the native {@code earliestContainingRevisions} of the sessions opened from now on stop climbing above
+         * revisions which cannot be among the earliest ones if history is monotonic, see
+         * {@link NativeQuery#earliestContainingRevisions(long, long, boolean)}.
+         */
+        public Factory withMonotonicHistory(boolean monotonicHistory) {
+            this.monotonicHistory = monotonicHistory;
+            return this;
+        }
+
+        /**
+         * Caches up to {@code messageCacheSize} decoded messages in each session opened from now on, see
+         * {@link SwhProperties#getProvider(SwhBidirectionalGraph, int)}.
+         */
+        public Factory withMessageCache(int messageCacheSize) {
+            this.messageCacheSize = messageCacheSize;
+            return this;
+        }
+
+        /**
+         * Shares the templates of {@code prepared} between the sessions opened from now on, which compile their
+         * scripts in caches of {@link PreparedQueries#cacheSize()} scripts.
+         */
+        public Factory withPreparedQueries(PreparedQueries prepared) {
+            this.prepared = prepared;
+            return this;
+        }
+
+        public PreparedQueries getPreparedQueries() {
+            return prepared;
+        }
+
+        /**
+         * Opens a session over a new copy of the graph. It is closed with the factory.
+         */
+        public QuerySession open() {
+            try {
+                QuerySession session = new QuerySession(this, graph.copy());
+                sessions.add(session);
+                return session;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * @return a thread-local supplier of sessions, opening one per thread on first use.
+         */
+        public ThreadLocal<QuerySession> perThread() {
+            return ThreadLocal.withInitial(this::open);
+        }
+
+        /**
+         * Closes all opened sessions and the parallel engine.
+         */
+        @Override
+        public void close() {
+            if (parallel != null) {
+                parallel.close();
+            }
+            QuerySession session;
+            while ((session = sessions.poll()) != null) {
+                try {
+                    session.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Streaming output of query results to a channel, through a fixed-size buffer.
+ * <p>
+ * Results are encoded straight into the buffer, which is written to the channel when full. Writes to a blocking
+ * channel (file, socket, standard output) block while the receiver is slow, so the producing query is paced by the
+ * output and memory use does not depend on the number of results.
+ * <p>
+ * Vertices and native node ids are written as node records (with their SWHID if a graph is given), edges as
+ * (source, destination) records, paths as the ids of their vertices, and anything else as a string. With a
+ * {@link SwhidIndex}, SWHIDs are copied from the mapping of {@code node2swhid.bin} instead of being built by the graph.
+ */
+public class ResultSink implements AutoCloseable {
+
+    public enum Format {
+        /**
+         * {@code String.valueOf(result)}, one per line.
+         */
+        TEXT,
+        /**
+         * One JSON object per line: {@code {"id":1,"swhid":"swh:1:..."}}, {@code {"src":1,"dst":2}},
+         * {@code {"path":[1,2]}} or {@code {"value":"..."}}.
+         */
+        NDJSON,
+        /**
+         * Comma-separated: {@code id,swhid}, {@code src,dst}, slash-separated path ids, or a quoted string.
+         */
+        CSV,
+        /**
+         * Big-endian records starting with a tag byte: {@code 'N'} id (8 bytes) [SWHID (22 bytes, as in
+         * {@code node2swhid.bin})], {@code 'E'} src dst, {@code 'P'} length (4 bytes) ids, {@code 'S'} length UTF-8.
+         */
+        BINARY,
+        /**
+         * The 22-byte binary SWHIDs of node results, back to back, for bulk node lists. Other results are rejected.
+         */
+        SWHID
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int SWHID_BYTES = SwhidIndex.SWHID_BYTES;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final Format format;
+    private final SwhBidirectionalGraph graph;
+    private final ByteBuffer buffer;
+    private SwhidIndex swhids;
+    private boolean closeChannel = true;
+    private long count;
+
+    /**
+     * @param graph the graph used to write SWHIDs of nodes, or {@code null} to only write ids
+     */
+    public ResultSink(WritableByteChannel channel, Format format, SwhBidirectionalGraph graph, int bufferSize) {
+        this.channel = channel;
+        this.format = format;
+        this.graph = graph;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Writes the SWHIDs of nodes from {@code swhids}, if not {@code null}.
+     */
+    public ResultSink withSwhidIndex(SwhidIndex swhids) {
+        this.swhids = swhids;
+        return this;
+    }
+
+    /**
+     * Opens a sink to {@code -} (standard output), {@code tcp://host:port}, or a file path.
+     */
+    public static ResultSink open(String target, Format format, SwhBidirectionalGraph graph) throws IOException {
+        WritableByteChannel channel;
+        if (target.equals("-")) {
+            ResultSink res = new ResultSink(Channels.newChannel(System.out), format, graph, DEFAULT_BUFFER_SIZE);
+            res.closeChannel = false;
+            return res;
+        }
+        if (target.startsWith("tcp://")) {
+            URI uri = URI.create(target);
+            channel = SocketChannel.open(new InetSocketAddress(uri.getHost(), uri.getPort()));
+        } else {
+            channel = FileChannel.open(Paths.get(target), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        return new ResultSink(channel, format, graph, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Writes all remaining results of the iterator.
+     *
+     * @return the number of results written.
+     */
+    public long writeAll(Iterator<?> results) throws IOException {
+        long res = 0;
+        while (results.hasNext()) {
+            write(results.next());
+            res++;
+        }
+        return res;
+    }
+
+    public void write(Object result) throws IOException {
+        count++;
+        if (format == Format.SWHID) {
+            writeRawSwhid(result);
+        } else if (format == Format.TEXT) {
+            writeString(String.valueOf(result));
+            put((byte) '\n');
+        } else if (result instanceof Vertex) {
+            writeNode(id((Vertex) result));
+        } else if (result instanceof Long || result instanceof Integer) {
+            writeNode(((Number) result).longValue());
+        } else if (result instanceof Edge) {
+            Edge edge = (Edge) result;
+            writeEdge(id(edge.outVertex()), id(edge.inVertex()));
+        } else if (result instanceof org.apache.tinkerpop.gremlin.process.traversal.Path) {
+            writePath((org.apache.tinkerpop.gremlin.process.traversal.Path) result);
+        } else if (result instanceof long[]) {
+            writePath((long[]) result);
+        } else {
+            writeValue(String.valueOf(result));
+        }
+    }
+
+    /**
+     * @return the number of results written so far.
+     */
+    public long count() {
+        return count;
+    }
+
+    private static long id(Vertex vertex) {
+        return ((Number) vertex.id()).longValue();
+    }
+
+    private void writeNode(long id) throws IOException {
+        boolean withSwhid = graph != null || swhids != null;
+        switch (format) {
+            case NDJSON:
+                writeAscii("{\"id\":");
+                writeLong(id);
+                if (withSwhid) {
+                    writeAscii(",\"swhid\":\"");
+                    writeAscii(swhid(id));
+                    put((byte) '"');
+                }
+                writeAscii("}\n");
+                break;
+            case CSV:
+                writeLong(id);
+                if (withSwhid) {
+                    put((byte) ',');
+                    writeAscii(swhid(id));
+                }
+                put((byte) '\n');
+                break;
+            default:
+                ensure(1 + Long.BYTES + SWHID_BYTES);
+                buffer.put((byte) 'N').putLong(id);
+                if (withSwhid) {
+                    writeBinarySwhid(id);
+                }
+        }
+    }
+
+    private String swhid(long id) {
+        return swhids != null ? swhids.swhid(id) : graph.getSWHID(id).toString();
+    }
+
+    private void writeRawSwhid(Object result) throws IOException {
+        long id;
+        if (result instanceof Vertex) {
+            id = id((Vertex) result);
+        } else if (result instanceof Long || result instanceof Integer) {
+            id = ((Number) result).longValue();
+        } else {
+            throw new IllegalArgumentException("The swhid format only writes nodes, got: " + result);
+        }
+        if (swhids == null && graph == null) {
+            throw new IllegalStateException("The swhid format needs a graph or a SWHID index");
+        }
+        ensure(SWHID_BYTES);
+        writeBinarySwhid(id);
+    }
+
+    /**
+     * Writes the SWHID in the 22-byte format of {@code node2swhid.bin}: version, node type, 20-byte hash.
+     */
+    private void writeBinarySwhid(long id) {
+        if (swhids != null) {
+            buffer.put(swhids.binary(id));
+            return;
+        }
+        String swhid = graph.getSWHID(id).toString();
+        buffer.put((byte) 1).put((byte) Node.Type.toInt(graph.getNodeType(id)));
+        // swh:1:<type>:<40 hex digits>
+        int start = swhid.length() - 40;
+        for (int i = start; i < swhid.length(); i += 2) {
+            buffer.put((byte) (Character.digit(swhid.charAt(i), 16) << 4 | Character.digit(swhid.charAt(i + 1), 16)));
+        }
+    }
+
+    private void writeEdge(long src, long dst) throws IOException {
+        switch (format) {
+            case NDJSON:
+                writeAscii("{\"src\":");
+                writeLong(src);
+                writeAscii(",\"dst\":");
+                writeLong(dst);
+                writeAscii("}\n");
+                break;
+            case CSV:
+                writeLong(src);
+                put((byte) ',');
+                writeLong(dst);
+                put((byte) '\n');
+                break;
+            default:
+                ensure(1 + 2 * Long.BYTES);
+                buffer.put((byte) 'E').putLong(src).putLong(dst);
+        }
+    }
+
+    private void writePath(org.apache.tinkerpop.gremlin.process.traversal.Path path) throws IOException {
+        long[] ids = path.objects().stream()
+                         .filter(o -> o instanceof Vertex)
+                         .mapToLong(o -> id((Vertex) o))
+                         .toArray();
+        writePath(ids);
+    }
+
+    private void writePath(long[] ids) throws IOException {
+        switch (format) {
+            case NDJSON:
+                writeAscii("{\"path\":[");
+                for (int i = 0; i < ids.length; i++) {
+                    if (i > 0) {
+                        put((byte) ',');
+                    }
+                    writeLong(ids[i]);
+                }
+                writeAscii("]}\n");
+                break;
+            case CSV:
+                for (int i = 0; i < ids.length; i++) {
+                    if (i > 0) {
+                        put((byte) '/');
+                    }
+                    writeLong(ids[i]);
+                }
+                put((byte) '\n');
+                break;
+            default:
+                ensure(1 + Integer.BYTES);
+                buffer.put((byte) 'P').putInt(ids.length);
+                for (long id : ids) {
+                    ensure(Long.BYTES);
+                    buffer.putLong(id);
+                }
+        }
+    }
+
+    private void writeValue(String value) throws IOException {
+        switch (format) {
+            case NDJSON:
+                writeAscii("{\"value\":\"");
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        put((byte) '\\');
+                        put((byte) c);
+                    } else if (c < 0x20) {
+                        writeAscii("\\u00");
+                        put(HEX[c >> 4]);
+                        put(HEX[c & 0xf]);
+                    } else if (c < 0x80) {
+                        put((byte) c);
+                    } else {
+                        // encode runs of non-ASCII chars at once, so that surrogate pairs are encoded together
+                        int end = i + 1;
+                        while (end < value.length() && value.charAt(end) >= 0x80) {
+                            end++;
+                        }
+                        writeString(value.substring(i, end));
+                        i = end - 1;
+                    }
+                }
+                writeAscii("\"}\n");
+                break;
+            case CSV:
+                put((byte) '"');
+                writeString(value.replace("\"", "\"\""));
+                writeAscii("\"\n");
+                break;
+            default:
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                ensure(1 + Integer.BYTES);
+                buffer.put((byte) 'S').putInt(bytes.length);
+                writeBytes(bytes);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeAscii(String value) throws IOException {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        ensure(20);
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                writeAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered results to the channel.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes the buffer and closes the channel, unless it is standard output.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (closeChannel) {
+            channel.close();
+        }
+    }
+}
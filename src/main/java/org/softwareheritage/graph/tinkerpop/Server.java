@@ -1,35 +1,91 @@
 package org.softwareheritage.graph.tinkerpop;
 
+import org.apache.tinkerpop.gremlin.groovy.jsr223.GremlinGroovyScriptEngine;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
 import org.softwareheritage.graph.SwhBidirectionalGraph;
 import org.webgraph.tinkerpop.GremlinQueryExecutor;
 import org.webgraph.tinkerpop.structure.WebGraphGraph;
 import org.webgraph.tinkerpop.structure.provider.WebGraphPropertyProvider;
 
+import javax.script.Bindings;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
 
 public class Server {
 
     public static void main(String[] args) throws IOException {
         if (args == null || args.length < 2 || args[0] == null || args[1] == null) {
             System.out.println(
-                    "Usage: org.webgraph.tinkerpop.server.Server <graph_path> <query> [--profile]");
+                    "Usage: org.webgraph.tinkerpop.server.Server <graph_path> <query> [--profile] "
+                            + "[--format text|ndjson|csv|binary|swhid] [--output -|tcp://host:port|<file>] "
+                            + "[--message-cache <n>]");
             return;
         }
         String path = args[0];
         String query = args[1];
-        boolean profile = args.length == 3 && args[2].equals("--profile");
+        boolean profile = false;
+        ResultSink.Format format = null;
+        String output = "-";
+        int messageCacheSize = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--profile")) {
+                profile = true;
+            } else if (args[i].equals("--format") && i + 1 < args.length) {
+                format = ResultSink.Format.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("--output") && i + 1 < args.length) {
+                output = args[++i];
+                if (format == null) {
+                    format = ResultSink.Format.TEXT;
+                }
+            } else if (args[i].equals("--message-cache") && i + 1 < args.length) {
+                messageCacheSize = Integer.parseInt(args[++i]);
+            }
+        }
         SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
-        WebGraphPropertyProvider swh = SwhProperties.getProvider(graph);
+        WebGraphPropertyProvider swh = SwhProperties.getProvider(graph, messageCacheSize);
+        PrimitiveDedupStrategy.register();
+        SwhidIndex swhids = SwhidIndex.open(path);
+        if (swhids != null) {
+            try {
+                query = swhids.resolveLiterals(query);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return;
+            }
+        }
         try (var gg = WebGraphGraph.open(graph, swh, path)) {
-            System.out.println("Opened graph: " + path);
-            var executor = new GremlinQueryExecutor(gg);
+            TypeIndexStrategy.register(gg, NodeTypeIndex.load(graph));
+            // keep standard output clean for the results
+            (format != null && output.equals("-") ? System.err : System.out).println("Opened graph: " + path);
             if (profile) {
-                executor.profile(query);
+                new GremlinQueryExecutor(gg).profile(query);
+            } else if (format != null) {
+                try (ResultSink sink = ResultSink.open(output, format, graph).withSwhidIndex(swhids)) {
+                    sink.writeAll(eval(gg, query));
+                }
             } else {
-                executor.print(query);
+                new GremlinQueryExecutor(gg).print(query);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Evaluates the query with the traversal source bound to {@code g}, without collecting its results.
+     */
+    private static Iterator<?> eval(WebGraphGraph graph, String query) throws Exception {
+        GremlinGroovyScriptEngine engine = new GremlinGroovyScriptEngine();
+        Bindings bindings = engine.createBindings();
+        bindings.put("g", graph.traversal());
+        Object result = engine.eval(query, bindings);
+        if (result instanceof Traversal) {
+            return (Traversal<?, ?>) result;
+        }
+        if (result instanceof Iterator) {
+            return (Iterator<?>) result;
+        }
+        return Collections.singletonList(result).iterator();
+    }
 }
@@ -0,0 +1,210 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongIterators;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.util.XoRoShiRo128PlusRandom;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Picks random start nodes of a given type directly on node ids, without creating vertices.
+ * <p>
+ * With a {@link NodeTypeIndex}, unstratified samples draw random positions in the ids of the type, and stratified
+ * samples make a reservoir sampling pass over the ids of the type only. Without one, unstratified samples use rejection
+ * sampling: random ids are drawn until enough nodes of the type are found, which is fast for the common types. If the
+ * type is too rare for that, or when stratifying by degree, a single reservoir sampling pass over all node ids is made
+ * instead. Samples can be saved to and loaded from files with one id per line,
+ * the format read by {@link BatchQuery}.
+ */
+public class StartPointSampler {
+
+    /**
+     * How to stratify a sample: by {@code floor(log2(degree + 1))} buckets of the outdegree or indegree.
+     */
+    public enum Stratify {NONE, OUTDEGREE, INDEGREE}
+
+    /**
+     * The number of rejected draws per requested sample after which rejection sampling gives up.
+     */
+    private static final int MAX_REJECTIONS = 1000;
+    private static final int BUCKETS = 64;
+
+    private final SwhBidirectionalGraph graph;
+    private final XoRoShiRo128PlusRandom random;
+    private final NodeTypeIndex types;
+
+    public StartPointSampler(SwhBidirectionalGraph graph, long seed) {
+        this(graph, seed, null);
+    }
+
+    /**
+     * @param types the ids of the nodes of each type, or {@code null} to find them by scanning node types
+     */
+    public StartPointSampler(SwhBidirectionalGraph graph, long seed, NodeTypeIndex types) {
+        this.graph = graph;
+        this.random = new XoRoShiRo128PlusRandom(seed);
+        this.types = types;
+    }
+
+    /**
+     * @return up to {@code count} distinct random nodes of the type, fewer if the graph does not have enough.
+     */
+    public long[] sample(Node.Type type, int count) {
+        return sample(type, count, Stratify.NONE);
+    }
+
+    /**
+     * Samples nodes of the type. A stratified sample is split evenly across the non-empty degree buckets, buckets with
+     * too few nodes leave their share to the others.
+     */
+    public long[] sample(Node.Type type, int count, Stratify stratify) {
+        if (count <= 0) {
+            return new long[0];
+        }
+        if (stratify == Stratify.NONE && types != null) {
+            return indexSample(type, count);
+        }
+        if (stratify == Stratify.NONE) {
+            long[] res = rejectionSample(type, count);
+            if (res != null) {
+                return res;
+            }
+        }
+        return reservoirSample(type, count, stratify);
+    }
+
+    private long[] rejectionSample(Node.Type type, int count) {
+        long numNodes = graph.numNodes();
+        LongOpenHashSet seen = new LongOpenHashSet(count);
+        LongArrayList res = new LongArrayList(count);
+        long rejections = 0;
+        long maxRejections = (long) count * MAX_REJECTIONS;
+        while (res.size() < count) {
+            long node = random.nextLong(numNodes);
+            if (graph.getNodeType(node) == type && seen.add(node)) {
+                res.add(node);
+            } else if (++rejections > maxRejections) {
+                return null;
+            }
+        }
+        return res.toLongArray();
+    }
+
+    private long[] indexSample(Node.Type type, int count) {
+        long size = types.count(type);
+        LongArrayList res = new LongArrayList((int) Math.min(count, size));
+        if (size <= count) {
+            for (LongIterator it = types.iterator(type); it.hasNext(); ) {
+                res.add(it.nextLong());
+            }
+            return res.toLongArray();
+        }
+        LongOpenHashSet positions = new LongOpenHashSet(count);
+        while (res.size() < count) {
+            long position = random.nextLong(size);
+            if (positions.add(position)) {
+                res.add(types.get(type, position));
+            }
+        }
+        return res.toLongArray();
+    }
+
+    private long[] reservoirSample(Node.Type type, int count, Stratify stratify) {
+        long[][] reservoirs = new long[stratify == Stratify.NONE ? 1 : BUCKETS][];
+        long[] seen = new long[reservoirs.length];
+        LongIterator nodes = types != null ? types.iterator(type) : LongIterators.fromTo(0, graph.numNodes());
+        while (nodes.hasNext()) {
+            long node = nodes.nextLong();
+            if (types == null && graph.getNodeType(node) != type) {
+                continue;
+            }
+            int bucket = bucket(node, stratify);
+            if (reservoirs[bucket] == null) {
+                reservoirs[bucket] = new long[count];
+            }
+            long n = seen[bucket]++;
+            if (n < count) {
+                reservoirs[bucket][(int) n] = node;
+            } else {
+                long slot = random.nextLong(n + 1);
+                if (slot < count) {
+                    reservoirs[bucket][(int) slot] = node;
+                }
+            }
+        }
+        // reservoirs keep the first nodes in iteration order until they are full, shuffle them so that the prefixes
+        // taken below are random as well
+        for (int bucket = 0; bucket < reservoirs.length; bucket++) {
+            if (reservoirs[bucket] != null) {
+                LongArrays.shuffle(reservoirs[bucket], 0, (int) Math.min(seen[bucket], count), random);
+            }
+        }
+        // round-robin over the buckets, so that each non-empty bucket gets an equal share
+        LongArrayList res = new LongArrayList(count);
+        int[] taken = new int[reservoirs.length];
+        boolean progress = true;
+        while (res.size() < count && progress) {
+            progress = false;
+            for (int bucket = 0; bucket < reservoirs.length && res.size() < count; bucket++) {
+                if (taken[bucket] < Math.min(seen[bucket], count)) {
+                    res.add(reservoirs[bucket][taken[bucket]++]);
+                    progress = true;
+                }
+            }
+        }
+        return res.toLongArray();
+    }
+
+    private int bucket(long node, Stratify stratify) {
+        switch (stratify) {
+            case OUTDEGREE:
+                return 63 - Long.numberOfLeadingZeros(graph.outdegree(node) + 1);
+            case INDEGREE:
+                return 63 - Long.numberOfLeadingZeros(graph.indegree(node) + 1);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Writes the sample, one id per line.
+     */
+    public static void save(Path path, long[] sample) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            for (long node : sample) {
+                out.write(Long.toString(node));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads a sample written by {@link #save(Path, long[])}.
+     */
+    public static long[] load(Path path) throws IOException {
+        return load(path, null);
+    }
+
+    /**
+     * Reads a sample of node ids or, with {@code swhids}, SWHIDs, one per line.
+     */
+    public static long[] load(Path path, SwhidIndex swhids) throws IOException {
+        LongArrayList res = new LongArrayList();
+        try (BufferedReader in = Files.newBufferedReader(path)) {
+            LongIterator it = BatchQuery.readIds(in, swhids);
+            while (it.hasNext()) {
+                res.add(it.nextLong());
+            }
+        }
+        return res.toLongArray();
+    }
+}
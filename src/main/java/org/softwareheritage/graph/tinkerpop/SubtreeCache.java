@@ -0,0 +1,132 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded LRU cache of directory listings, keyed by DIR node id, shared between threads.
+ * <p>
+ * Revisions of a repository share most of their directories, and a directory always has the same listing relative to
+ * itself. {@link ContentListing} stores the listing of the directories it walks here, and replays it (under the
+ * current prefix) instead of walking the directory again. The cache is bounded by the total size of the listings in
+ * bytes.
+ */
+public class SubtreeCache {
+
+    /**
+     * The listing of a directory: its lines relative to it, concatenated. Line {@code i} ends at {@code ends[i]}
+     * (filenames may contain newlines, so lines are not separated).
+     */
+    public static class Subtree {
+        public final byte[] listing;
+        public final int[] ends;
+
+        public Subtree(byte[] listing, int[] ends) {
+            this.listing = listing;
+            this.ends = ends;
+        }
+
+        public int entries() {
+            return ends.length;
+        }
+
+        long bytes() {
+            return listing.length + (long) Integer.BYTES * ends.length;
+        }
+    }
+
+    public static final int DEFAULT_MIN_ENTRIES = 16;
+
+    private final long maxBytes;
+    private final int minEntries;
+    private final LinkedHashMap<Long, Subtree> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes   the maximum total size of the cached listings
+     * @param minEntries listings with fewer entries are not cached, since walking them is as cheap as replaying them
+     */
+    public SubtreeCache(long maxBytes, int minEntries) {
+        this.maxBytes = maxBytes;
+        this.minEntries = minEntries;
+    }
+
+    /**
+     * @return the largest listing worth building for the cache, in bytes.
+     */
+    public long maxEntryBytes() {
+        // a single listing may not take more than a quarter of the cache, nor more than an array
+        return Math.min(maxBytes / 4, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * @return the smallest number of entries of a listing worth building for the cache.
+     */
+    public int minEntries() {
+        return minEntries;
+    }
+
+    /**
+     * @return the cached listing of the directory, or {@code null}.
+     */
+    public Subtree get(long dir) {
+        Subtree res;
+        synchronized (cache) {
+            res = cache.get(dir);
+        }
+        (res != null ? hits : misses).increment();
+        return res;
+    }
+
+    public void put(long dir, Subtree subtree) {
+        if (subtree.entries() < minEntries || subtree.bytes() > maxEntryBytes()) {
+            return;
+        }
+        synchronized (cache) {
+            Subtree previous = cache.put(dir, subtree);
+            bytes += subtree.bytes() - (previous != null ? previous.bytes() : 0);
+            var it = cache.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().bytes();
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long bytes() {
+        synchronized (cache) {
+            return bytes;
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long h = hits();
+        long m = misses();
+        return String.format("SubtreeCache[size=%d, bytes=%d, hits=%d, misses=%d, evictions=%d, hit rate=%.2f%%]",
+                size(), bytes(), h, m, evictions(), h + m == 0 ? 0 : 100.0 * h / (h + m));
+    }
+}
@@ -0,0 +1,185 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.bits.BitVector;
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.longs.LongBigList;
+import org.apache.tinkerpop.gremlin.process.traversal.Traverser;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.webgraph.tinkerpop.structure.property.vertex.VertexProperty;
+import org.webgraph.tinkerpop.structure.provider.StandardWebGraphPropertyProvider;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/**
+ * The numeric SWH node properties, memory-mapped from the {@code .property.*.bin} files.
+ * <p>
+ * Getters return primitives, with a per-property sentinel for nodes without a value ({@link Long#MIN_VALUE} for
+ * timestamps and lengths, {@link Short#MIN_VALUE} for timestamp offsets, {@code -1} for person ids). Properties whose
+ * files are missing are not available, see {@link #keys()}.
+ */
+public class SwhColumns {
+
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+    private LongBigList contentIsSkipped;
+    private MappedStrings tagNames;
+
+    /**
+     * Maps all property files found next to the graph.
+     *
+     * @param path the basename of the graph
+     */
+    public static SwhColumns open(String path) throws IOException {
+        SwhColumns res = new SwhColumns();
+        res.map(path, "author_timestamp", Long.BYTES, Long.MIN_VALUE);
+        res.map(path, "author_timestamp_offset", Short.BYTES, Short.MIN_VALUE);
+        res.map(path, "committer_timestamp", Long.BYTES, Long.MIN_VALUE);
+        res.map(path, "committer_timestamp_offset", Short.BYTES, Short.MIN_VALUE);
+        res.map(path, "author_id", Integer.BYTES, -1);
+        res.map(path, "committer_id", Integer.BYTES, -1);
+        res.map(path, "content.length", Long.BYTES, Long.MIN_VALUE);
+        Path isSkipped = Path.of(path + ".property.content.is_skipped.bin");
+        if (Files.exists(isSkipped)) {
+            // stored as a serialized bit vector, which cannot be mapped
+            Object bits;
+            try {
+                bits = BinIO.loadObject(isSkipped.toFile());
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            res.contentIsSkipped = bits instanceof BitVector ? ((BitVector) bits).asLongBigList(1) : (LongBigList) bits;
+        }
+        Path tagName = Path.of(path + ".property.tag_name.bin");
+        if (Files.exists(tagName)) {
+            res.tagNames = MappedStrings.open(tagName);
+        }
+        return res;
+    }
+
+    private void map(String path, String key, int width, long missing) throws IOException {
+        Path file = Path.of(path + ".property." + key + ".bin");
+        if (Files.exists(file)) {
+            columns.put(key, new Column(MappedColumn.open(file, width), missing));
+        }
+    }
+
+    /**
+     * @return the keys of the available numeric properties.
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    /**
+     * @return the value of a numeric property, or the property's missing-value sentinel.
+     * @throws IllegalArgumentException if the property is not available.
+     */
+    public long get(String key, long node) {
+        return column(key).get(node);
+    }
+
+    public long authorTimestamp(long node) {
+        return get("author_timestamp", node);
+    }
+
+    public short authorTimestampOffset(long node) {
+        return (short) get("author_timestamp_offset", node);
+    }
+
+    public long committerTimestamp(long node) {
+        return get("committer_timestamp", node);
+    }
+
+    public short committerTimestampOffset(long node) {
+        return (short) get("committer_timestamp_offset", node);
+    }
+
+    public int authorId(long node) {
+        return (int) get("author_id", node);
+    }
+
+    public int committerId(long node) {
+        return (int) get("committer_id", node);
+    }
+
+    public long contentLength(long node) {
+        return get("content.length", node);
+    }
+
+    public boolean isContentSkipped(long node) {
+        return contentIsSkipped != null && contentIsSkipped.getLong(node) != 0;
+    }
+
+    /**
+     * @return the decoded tag name, or {@code null} if the node has none.
+     */
+    public byte[] tagName(long node) {
+        return tagNames != null ? tagNames.get(node) : null;
+    }
+
+    /**
+     * Traversal filter reading a numeric property straight from its column, without materializing vertex properties.
+     * Nodes without a value never match. Usage: {@code g.V().filter(columns.where("author_timestamp", t -> t < max))}.
+     */
+    public <A> Predicate<Traverser<A>> where(String key, LongPredicate predicate) {
+        Column column = column(key);
+        return traverser -> {
+            long node = ((Number) ((Element) traverser.get()).id()).longValue();
+            long value = column.get(node);
+            return value != column.missing && predicate.test(value);
+        };
+    }
+
+    /**
+     * Registers all available properties as vertex properties of the provider. Missing values are {@code null}, where
+     * the former file-backed {@code author_timestamp} property returned {@link Long#MIN_VALUE}: {@code has} predicates
+     * such as {@code has("author_timestamp", P.lt(max))} now skip undated nodes, like the {@link NativeQuery} searches.
+     */
+    public void addTo(StandardWebGraphPropertyProvider provider) {
+        for (Map.Entry<String, Column> entry : columns.entrySet()) {
+            Column column = entry.getValue();
+            provider.addVertexProperty(new VertexProperty<>(entry.getKey(), node -> {
+                long value = column.get(node);
+                return value == column.missing ? null : value;
+            }));
+        }
+        if (contentIsSkipped != null) {
+            provider.addVertexProperty(new VertexProperty<>("content.is_skipped", this::isContentSkipped));
+        }
+        if (tagNames != null) {
+            provider.addVertexProperty(new VertexProperty<>("tag_name", node -> {
+                byte[] name = tagNames.get(node);
+                return name == null ? null : new String(name);
+            }));
+        }
+    }
+
+    private Column column(String key) {
+        Column column = columns.get(key);
+        if (column == null) {
+            throw new IllegalArgumentException("Unknown property key: " + key);
+        }
+        return column;
+    }
+
+    private static class Column {
+        final MappedColumn values;
+        final long missing;
+
+        Column(MappedColumn values, long missing) {
+            this.values = values;
+            this.missing = missing;
+        }
+
+        long get(long node) {
+            return values.get(node);
+        }
+    }
+}
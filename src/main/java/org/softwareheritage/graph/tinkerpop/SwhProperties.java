@@ -3,74 +3,109 @@ package org.softwareheritage.graph.tinkerpop;
 import it.unimi.dsi.big.util.MappedFrontCodedStringBigList;
 import org.softwareheritage.graph.SwhBidirectionalGraph;
 import org.softwareheritage.graph.labels.DirEntry;
-import org.webgraph.tinkerpop.structure.property.edge.ArcLabelEdgeProperty;
-import org.webgraph.tinkerpop.structure.property.edge.ArcLabelEdgeSubProperty;
+import org.webgraph.tinkerpop.structure.property.edge.EdgeProperty;
 import org.webgraph.tinkerpop.structure.property.vertex.VertexProperty;
-import org.webgraph.tinkerpop.structure.property.vertex.file.FileVertexProperty;
 import org.webgraph.tinkerpop.structure.provider.StandardWebGraphPropertyProvider;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.Path;
+import java.util.function.Function;
 
 public class SwhProperties {
 
+    public static final int DEFAULT_FILENAME_CACHE_SIZE = 100_000;
+
     public static StandardWebGraphPropertyProvider getProvider(SwhBidirectionalGraph graph) throws IOException {
+        return getProvider(graph, 0);
+    }
+
+    /**
+     * @param messageCacheSize the number of decoded messages to cache, {@code 0} to disable the cache. Messages are
+     *                         only mapped on first access.
+     */
+    public static StandardWebGraphPropertyProvider getProvider(SwhBidirectionalGraph graph,
+                                                               int messageCacheSize) throws IOException {
         String path = graph.getPath();
-        graph.loadMessages();
         StandardWebGraphPropertyProvider provider = new StandardWebGraphPropertyProvider();
-        provider.setVertexLabeller(id -> graph.getNodeType(id).toString());
-        provider.addVertexProperty(new FileVertexProperty<>("author_timestamp", Long.class,
-                Path.of(path + ".property.author_timestamp.bin")));
+        provider.setVertexLabeller(id -> NodeTypeIndex.label(graph.getNodeType(id)));
+        SwhColumns.open(path).addTo(provider);
         provider.addVertexProperty(new VertexProperty<>("swhid", graph::getSWHID));
-        provider.addVertexProperty(new VertexProperty<>("message", nodeId -> {
-            try {
-                return graph.getProperties().getMessage(nodeId);
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
-        }));
+        LazyMessages messages = new LazyMessages(path, messageCacheSize);
+        provider.addVertexProperty(new VertexProperty<>("message", messages::get));
         return provider;
     }
 
     public static StandardWebGraphPropertyProvider withEdgeLabels(SwhBidirectionalGraph graph) throws IOException {
+        return withEdgeLabels(graph, new FilenameCache(graph, DEFAULT_FILENAME_CACHE_SIZE));
+    }
+
+    public static StandardWebGraphPropertyProvider withEdgeLabels(SwhBidirectionalGraph graph,
+                                                                  FilenameCache filenames) throws IOException {
+        return withEdgeLabels(graph, filenames, 0);
+    }
+
+    /**
+     * Edge labels are read through an {@link EdgeLabelIndex} of the graph, which decodes the labels of a node once for
+     * all its edges.
+     *
+     * @param filenames        the cache used to decode filenames, may be shared between providers of copies of the
+     *                         graph.
+     * @param messageCacheSize the number of decoded messages to cache, see {@link #getProvider(SwhBidirectionalGraph,
+     *                         int)}.
+     */
+    public static StandardWebGraphPropertyProvider withEdgeLabels(SwhBidirectionalGraph graph, FilenameCache filenames,
+                                                                  int messageCacheSize) throws IOException {
         graph.loadLabelNames();
-        StandardWebGraphPropertyProvider provider = getProvider(graph);
-        ArcLabelEdgeProperty<DirEntry[]> edgeProperty = new ArcLabelEdgeProperty<>(
-                graph.getForwardGraph().underlyingLabelledGraph());
-        provider.addEdgeProperty(edgeProperty);
-        provider.addEdgeProperty(
-                new ArcLabelEdgeSubProperty<>("dir_entry_str", edgeProperty,
-                        dirEntries -> dirEntryStr(dirEntries, graph)));
-        provider.addEdgeProperty(
-                new ArcLabelEdgeSubProperty<>("filenames", edgeProperty, dirEntries -> filenames(dirEntries, graph)));
+        StandardWebGraphPropertyProvider provider = getProvider(graph, messageCacheSize);
+        EdgeLabelIndex labels = new EdgeLabelIndex(graph, EdgeLabelIndex.DEFAULT_CACHE_SIZE);
+        provider.addEdgeProperty(new IndexedLabelProperty<>(FilenamePredicates.DIR_ENTRY, labels,
+                dirEntries -> dirEntries));
+        provider.addEdgeProperty(new IndexedLabelProperty<>("dir_entry_str", labels,
+                dirEntries -> dirEntryStr(dirEntries, filenames)));
+        provider.addEdgeProperty(new IndexedLabelProperty<>("filenames", labels,
+                dirEntries -> filenames(dirEntries, filenames)));
         return provider;
     }
 
-    private static DirEntryString[] dirEntryStr(DirEntry[] dirEntries, SwhBidirectionalGraph graph) {
+    private static DirEntryString[] dirEntryStr(DirEntry[] dirEntries, FilenameCache filenames) {
         if (dirEntries.length == 0) {
             return null;
         }
         DirEntryString[] res = new DirEntryString[dirEntries.length];
         for (int i = 0; i < dirEntries.length; i++) {
-            res[i] = new DirEntryString(getFilename(dirEntries[i], graph), dirEntries[i].permission);
+            res[i] = new DirEntryString(filenames.get(dirEntries[i].filenameId), dirEntries[i].permission);
         }
         return res;
     }
 
-    private static String[] filenames(DirEntry[] dirEntries, SwhBidirectionalGraph graph) {
+    private static String[] filenames(DirEntry[] dirEntries, FilenameCache filenames) {
         if (dirEntries.length == 0) {
             return null;
         }
         String[] res = new String[dirEntries.length];
         for (int i = 0; i < dirEntries.length; i++) {
-            res[i] = getFilename(dirEntries[i], graph);
+            res[i] = filenames.get(dirEntries[i].filenameId);
         }
         return res;
     }
 
-    private static String getFilename(DirEntry dirEntry, SwhBidirectionalGraph graph) {
-        return new String(graph.getLabelName(dirEntry.filenameId));
+    /**
+     * An edge property computed from the label of the edge, looked up in an {@link EdgeLabelIndex}.
+     */
+    private static class IndexedLabelProperty<T> extends EdgeProperty<T> {
+        private final EdgeLabelIndex labels;
+        private final Function<DirEntry[], T> value;
+
+        IndexedLabelProperty(String key, EdgeLabelIndex labels, Function<DirEntry[], T> value) {
+            super(key);
+            this.labels = labels;
+            this.value = value;
+        }
+
+        @Override
+        public T get(long fromId, long toId) {
+            DirEntry[] dirEntries = labels.get(fromId, toId);
+            return dirEntries != null ? value.apply(dirEntries) : null;
+        }
     }
 
     public static class DirEntryString {
@@ -5,14 +5,16 @@ import org.webgraph.tinkerpop.structure.provider.WebGraphPropertyProvider;
 
 public class SwhWebGraphPropertyProvider implements WebGraphPropertyProvider {
     private final SwhBidirectionalGraph graph;
+    private final EdgeLabelIndex edgeLabels;
 
     public SwhWebGraphPropertyProvider(SwhBidirectionalGraph graph) {
         this.graph = graph;
+        this.edgeLabels = new EdgeLabelIndex(graph, EdgeLabelIndex.DEFAULT_CACHE_SIZE);
     }
 
     @Override
     public String vertexLabel(long nodeId) {
-        return graph.getNodeType(nodeId).toString();
+        return NodeTypeIndex.label(graph.getNodeType(nodeId));
     }
 
     @Override
@@ -44,13 +46,6 @@ public class SwhWebGraphPropertyProvider implements WebGraphPropertyProvider {
         if (!key.equals("dir_entry")) {
             throw new RuntimeException("Unknown property key: " + key);
         }
-        var s = graph.labelledSuccessors(fromId);
-        long succ;
-        while ((succ = s.nextLong()) != -1) {
-            if (succ == toId) {
-                return s.label().get();
-            }
-        }
-        return null;
+        return edgeLabels.get(fromId, toId);
     }
 }
@@ -0,0 +1,260 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.Object2LongFunction;
+import org.softwareheritage.graph.Node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Conversions between SWHIDs and node ids, reading the files of the graph directly.
+ * <p>
+ * SWHIDs are resolved with the minimal perfect hash of the SWHIDs ({@code <graph>.mph}) and the permutation from hash
+ * values to node ids ({@code <graph>.order}), then checked against {@code <graph>.node2swhid.bin}, since the hash maps
+ * unknown SWHIDs to arbitrary values. {@link #resolve(List)} resolves a batch at once, reading the permutation and the
+ * SWHIDs in increasing offset order, so that a large batch sweeps the mappings instead of faulting pages at random.
+ * <p>
+ * The SWHIDs of nodes are read from the mapping of {@code node2swhid.bin}, which holds 22 bytes per node: the SWHID
+ * version, the node type ({@link Node.Type#toInt}) and the 20-byte hash. {@link #binary} returns them without copy.
+ */
+public class SwhidIndex {
+
+    public static final int SWHID_BYTES = 22;
+    private static final int HASH_BYTES = 20;
+    private static final String PREFIX = "swh:1:";
+    private static final int SWHID_LENGTH = PREFIX.length() + 4 + 2 * HASH_BYTES;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /** The start of the argument list of a {@code V(...)} or {@code E(...)} step. */
+    private static final Pattern ID_CALL = Pattern.compile("(?<![\\w$])[VE]\\(");
+    /** An argument of an id list: a quoted SWHID or a node id, followed by the next separator. */
+    private static final Pattern ID_ARGUMENT = Pattern.compile(
+            "\\s*(?:(['\"])(swh:1:[a-z]{3}:[0-9a-f]{40})\\1|\\d+[lL]?)\\s*([,)])");
+
+    private final Object2LongFunction<byte[]> mph;
+    private final MappedColumn order;
+    private final MappedColumn swhids;
+
+    private SwhidIndex(Object2LongFunction<byte[]> mph, MappedColumn order, MappedColumn swhids) {
+        this.mph = mph;
+        this.order = order;
+        this.swhids = swhids;
+    }
+
+    /**
+     * @param path the basename of the graph
+     * @return the index of the graph, or {@code null} if the graph has no {@code .mph}, {@code .order} or
+     * {@code .node2swhid.bin} file.
+     */
+    @SuppressWarnings("unchecked")
+    public static SwhidIndex open(String path) throws IOException {
+        for (String suffix : new String[]{".mph", ".order", ".node2swhid.bin"}) {
+            if (!Files.exists(Path.of(path + suffix))) {
+                return null;
+            }
+        }
+        Object2LongFunction<byte[]> mph;
+        try {
+            mph = (Object2LongFunction<byte[]>) BinIO.loadObject(path + ".mph");
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        MappedColumn order = MappedColumn.open(Path.of(path + ".order"), Long.BYTES);
+        MappedColumn swhids = MappedColumn.open(Path.of(path + ".node2swhid.bin"), SWHID_BYTES);
+        if (order.size() != swhids.size()) {
+            throw new IOException("The permutation and the SWHIDs of " + path + " have different sizes");
+        }
+        return new SwhidIndex(mph, order, swhids);
+    }
+
+    /**
+     * @return whether the string looks like a SWHID rather than a node id.
+     */
+    public static boolean isSwhid(String value) {
+        return value.startsWith(PREFIX);
+    }
+
+    /**
+     * @return the id of the node with this SWHID, or {@code -1} if the graph has none.
+     */
+    public long resolve(String swhid) {
+        byte[] expected = encode(swhid);
+        if (expected == null) {
+            return -1;
+        }
+        long node = node(mph.getLong(swhid.getBytes(StandardCharsets.US_ASCII)));
+        return node != -1 && matches(node, expected) ? node : -1;
+    }
+
+    /**
+     * @return the ids of the nodes with these SWHIDs, in the same order, {@code -1} for the SWHIDs the graph does not
+     * have.
+     */
+    public long[] resolve(List<String> swhids) {
+        int n = swhids.size();
+        byte[][] expected = new byte[n][];
+        long[] hashes = new long[n];
+        for (int i = 0; i < n; i++) {
+            String swhid = swhids.get(i);
+            expected[i] = encode(swhid);
+            hashes[i] = expected[i] == null ? -1 : mph.getLong(swhid.getBytes(StandardCharsets.US_ASCII));
+        }
+        int[] perm = new int[n];
+        Arrays.setAll(perm, i -> i);
+        IntArrays.quickSort(perm, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        long[] res = new long[n];
+        for (int i : perm) {
+            res[i] = node(hashes[i]);
+        }
+        IntArrays.quickSort(perm, (a, b) -> Long.compare(res[a], res[b]));
+        for (int i : perm) {
+            if (res[i] != -1 && !matches(res[i], expected[i])) {
+                res[i] = -1;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Resolves a mix of node ids and SWHIDs, e.g. from a command line or a script: {@code g.V(swhids.ids(...))}.
+     *
+     * @return the node ids, as objects so that scripts pass them as separate ids
+     * @throws IllegalArgumentException if a SWHID is not in the graph
+     */
+    public Object[] ids(String... values) {
+        List<String> swhids = new ArrayList<>();
+        for (String value : values) {
+            if (isSwhid(value)) {
+                swhids.add(value);
+            }
+        }
+        long[] resolved = resolve(swhids);
+        Object[] res = new Object[values.length];
+        for (int i = 0, j = 0; i < values.length; i++) {
+            if (!isSwhid(values[i])) {
+                res[i] = Long.parseLong(values[i]);
+                continue;
+            }
+            long node = resolved[j++];
+            if (node == -1) {
+                throw new IllegalArgumentException("Unknown SWHID: " + values[i]);
+            }
+            res[i] = node;
+        }
+        return res;
+    }
+
+    /**
+     * Replaces the quoted SWHIDs given as ids to {@code V(...)} and {@code E(...)} steps with their node ids, resolved
+     * in one batch, e.g. {@code g.V('swh:1:rev:...').out()} becomes {@code g.V(42L).out()}. Other SWHIDs of the script,
+     * e.g. in {@code has("swhid", "swh:1:rev:...")}, are left as they are; computed ones can be resolved with
+     * {@link #ids}.
+     *
+     * @throws IllegalArgumentException if a SWHID given as an id is not in the graph
+     */
+    public String resolveLiterals(String script) {
+        List<String> found = new ArrayList<>();
+        IntArrayList starts = new IntArrayList();
+        IntArrayList ends = new IntArrayList();
+        Matcher call = ID_CALL.matcher(script);
+        Matcher argument = ID_ARGUMENT.matcher(script);
+        while (call.find()) {
+            // stops at the first argument which is neither a SWHID nor an id, e.g. a variable
+            for (int position = call.end(); argument.region(position, script.length()).lookingAt(); ) {
+                if (argument.group(2) != null) {
+                    found.add(argument.group(2));
+                    starts.add(argument.start(1));
+                    // after the closing quote
+                    ends.add(argument.end(2) + 1);
+                }
+                position = argument.end();
+                if (argument.group(3).equals(")")) {
+                    break;
+                }
+            }
+        }
+        if (found.isEmpty()) {
+            return script;
+        }
+        Object[] ids = ids(found.toArray(new String[0]));
+        StringBuilder res = new StringBuilder(script.length());
+        int last = 0;
+        for (int i = 0; i < ids.length; i++) {
+            res.append(script, last, starts.getInt(i)).append(ids[i]).append('L');
+            last = ends.getInt(i);
+        }
+        return res.append(script, last, script.length()).toString();
+    }
+
+    /**
+     * @return the id of a node or SWHID
+     * @throws IllegalArgumentException if the SWHID is not in the graph
+     */
+    public long id(String value) {
+        return (Long) ids(value)[0];
+    }
+
+    private long node(long hash) {
+        return hash >= 0 && hash < order.size() ? order.getLong(hash) : -1;
+    }
+
+    private boolean matches(long node, byte[] expected) {
+        return binary(node).equals(ByteBuffer.wrap(expected));
+    }
+
+    /**
+     * @return the 22-byte binary SWHID of the string, or {@code null} if it is not a valid SWHID.
+     */
+    static byte[] encode(String swhid) {
+        if (swhid.length() != SWHID_LENGTH || !swhid.startsWith(PREFIX) || swhid.charAt(PREFIX.length() + 3) != ':') {
+            return null;
+        }
+        Node.Type type = NodeTypeIndex.type(swhid.substring(PREFIX.length(), PREFIX.length() + 3).toUpperCase());
+        if (type == null) {
+            return null;
+        }
+        byte[] res = new byte[SWHID_BYTES];
+        res[0] = 1;
+        res[1] = (byte) Node.Type.toInt(type);
+        for (int i = 0, offset = SWHID_LENGTH - 2 * HASH_BYTES; i < HASH_BYTES; i++, offset += 2) {
+            int high = Character.digit(swhid.charAt(offset), 16);
+            int low = Character.digit(swhid.charAt(offset + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            res[2 + i] = (byte) (high << 4 | low);
+        }
+        return res;
+    }
+
+    /**
+     * @return the binary SWHID of the node, a read-only view of the mapping.
+     */
+    public ByteBuffer binary(long node) {
+        return swhids.slice(node * SWHID_BYTES, SWHID_BYTES);
+    }
+
+    /**
+     * @return the SWHID of the node, decoded from its binary form.
+     */
+    public String swhid(long node) {
+        ByteBuffer bytes = binary(node);
+        StringBuilder res = new StringBuilder(SWHID_LENGTH);
+        res.append(PREFIX).append(Node.Type.fromInt(bytes.get(1)).toString().toLowerCase()).append(':');
+        for (int i = 2; i < SWHID_BYTES; i++) {
+            int b = bytes.get(i) & 0xff;
+            res.append(HEX[b >> 4]).append(HEX[b & 0xf]);
+        }
+        return res.toString();
+    }
+}
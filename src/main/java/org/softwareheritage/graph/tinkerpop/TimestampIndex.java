@@ -0,0 +1,237 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import com.martiansoftware.jsap.*;
+import it.unimi.dsi.big.webgraph.LazyLongIterator;
+import it.unimi.dsi.bits.LongArrayBitVector;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.softwareheritage.graph.Node;
+import org.softwareheritage.graph.SwhBidirectionalGraph;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The range of the author timestamps of the revisions above each node, used to prune time-bounded backward searches
+ * ({@link NativeQuery#revisionsBetween}, {@link Query#revisionsBetween(long, long, long, TimestampIndex)}).
+ * <p>
+ * For each content, directory and revision, the index ({@code <graph>.property.ancestor_timestamps.bin}) holds the
+ * minimum and maximum author timestamp of the revisions reachable from it through the transposed graph, itself
+ * included: the revisions containing a content or directory, and the revisions based on a revision. A search for
+ * revisions authored in {@code [from, to)} does not need to climb above a node whose range does not intersect it,
+ * since no revision above qualifies. Other nodes, and nodes without a dated revision above them, have an empty range.
+ * <p>
+ * The index is built offline by {@link #main}, with a depth-first search computing the range of each node from the
+ * ranges of its predecessors.
+ */
+public class TimestampIndex {
+
+    public static final String SUFFIX = ".property.ancestor_timestamps.bin";
+    /**
+     * The {@link #min} of nodes with an empty range.
+     */
+    public static final long NONE_MIN = Long.MAX_VALUE;
+    /**
+     * The {@link #max} of nodes with an empty range.
+     */
+    public static final long NONE_MAX = Long.MIN_VALUE;
+
+    private final MappedColumn column;
+
+    private TimestampIndex(MappedColumn column) {
+        this.column = column;
+    }
+
+    /**
+     * @param path the basename of the graph
+     * @return the index of the graph, or {@code null} if it was not built.
+     */
+    public static TimestampIndex open(String path, long numNodes) throws IOException {
+        Path file = Path.of(path + SUFFIX);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        MappedColumn column = MappedColumn.open(file, Long.BYTES);
+        if (column.size() != 2 * numNodes) {
+            throw new IOException("Timestamp index " + file + " does not match the graph size");
+        }
+        return new TimestampIndex(column);
+    }
+
+    /**
+     * @return the earliest author timestamp of the revisions above the node, or {@link #NONE_MIN}.
+     */
+    public long min(long node) {
+        return column.getLong(2 * node);
+    }
+
+    /**
+     * @return the latest author timestamp of the revisions above the node, or {@link #NONE_MAX}.
+     */
+    public long max(long node) {
+        return column.getLong(2 * node + 1);
+    }
+
+    /**
+     * @return whether a revision authored in {@code [from, to)} may be the node or above it.
+     */
+    public boolean mayContain(long node, long from, long to) {
+        return min(node) < to && max(node) >= from;
+    }
+
+    /**
+     * Whether the index holds the range of nodes of this type. Releases, snapshots and origins have no revision above
+     * them.
+     */
+    static boolean isIndexed(Node.Type type) {
+        return type == Node.Type.CNT || type == Node.Type.DIR || type == Node.Type.REV;
+    }
+
+    public static void main(String[] args) throws IOException, JSAPException {
+        SimpleJSAP jsap = new SimpleJSAP(TimestampIndex.class.getName(),
+                "Builds the index of the timestamp ranges of the revisions above each node.",
+                new Parameter[]{
+                        new FlaggedOption("graphPath", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'g', "path",
+                                "The basename of the compressed graph.")});
+
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(1);
+        }
+
+        String path = config.getString("graphPath");
+        System.out.println("Loading graph...");
+        SwhBidirectionalGraph graph = SwhBidirectionalGraph.loadLabelled(path);
+        graph.loadAuthorTimestamps();
+        try (Builder builder = new Builder(graph, Path.of(path + SUFFIX))) {
+            builder.build();
+        }
+        System.out.println("Timestamp index saved at: " + path + SUFFIX);
+    }
+
+    /**
+     * Writes the index file, see {@link TimestampIndex}. Not thread-safe.
+     */
+    static class Builder implements AutoCloseable {
+        private static final int CHUNK_LOG2 = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_LOG2) - 1;
+        private static final long PROGRESS_INTERVAL = 100_000_000;
+
+        private final SwhBidirectionalGraph graph;
+        private final FileChannel channel;
+        private final MappedByteBuffer[] chunks;
+
+        Builder(SwhBidirectionalGraph graph, Path file) throws IOException {
+            this.graph = graph;
+            long bytes = 2 * graph.numNodes() * Long.BYTES;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            int chunkCount = (int) ((bytes + CHUNK_MASK) >>> CHUNK_LOG2);
+            this.chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long start = (long) i << CHUNK_LOG2;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(1L << CHUNK_LOG2,
+                        bytes - start));
+            }
+        }
+
+        void build() {
+            // nodes pushed on the stack at some point. In a DAG, all the predecessors of a node have their range
+            // written when the node is popped
+            LongArrayBitVector entered = LongArrayBitVector.ofLength(graph.numNodes());
+            LongArrayList stack = new LongArrayList();
+            List<LazyLongIterator> iterators = new ArrayList<>();
+            long written = 0;
+            for (long root = 0; root < graph.numNodes(); root++) {
+                if (!isIndexed(graph.getNodeType(root))) {
+                    put(root, NONE_MIN, NONE_MAX);
+                    continue;
+                }
+                if (entered.getBoolean(root)) {
+                    continue;
+                }
+                entered.set(root);
+                stack.add(root);
+                iterators.add(graph.predecessors(root));
+                while (!stack.isEmpty()) {
+                    int top = stack.size() - 1;
+                    long parent = nextIndexed(iterators.get(top), entered);
+                    if (parent != -1) {
+                        stack.add(parent);
+                        iterators.add(graph.predecessors(parent));
+                        continue;
+                    }
+                    long node = stack.removeLong(top);
+                    iterators.remove(top);
+                    finish(node);
+                    if (++written % PROGRESS_INTERVAL == 0) {
+                        System.out.printf("Indexed %d nodes (at node %d/%d)%n", written, root, graph.numNodes());
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the next predecessor to search, or {@code -1} if there is none left.
+         */
+        private long nextIndexed(LazyLongIterator predecessors, LongArrayBitVector entered) {
+            long parent;
+            while ((parent = predecessors.nextLong()) != -1) {
+                if (isIndexed(graph.getNodeType(parent)) && !entered.getBoolean(parent)) {
+                    entered.set(parent);
+                    return parent;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Writes the range of the node, from its own timestamp and the ranges of its predecessors.
+         */
+        private void finish(long node) {
+            long min = NONE_MIN;
+            long max = NONE_MAX;
+            if (graph.getNodeType(node) == Node.Type.REV) {
+                long timestamp = graph.getAuthorTimestamp(node);
+                if (timestamp != Long.MIN_VALUE) {
+                    min = timestamp;
+                    max = timestamp;
+                }
+            }
+            LazyLongIterator predecessors = graph.predecessors(node);
+            long parent;
+            while ((parent = predecessors.nextLong()) != -1) {
+                if (isIndexed(graph.getNodeType(parent))) {
+                    min = Math.min(min, get(2 * parent));
+                    max = Math.max(max, get(2 * parent + 1));
+                }
+            }
+            put(node, min, max);
+        }
+
+        private long get(long slot) {
+            long offset = slot * Long.BYTES;
+            return chunks[(int) (offset >>> CHUNK_LOG2)].getLong((int) (offset & CHUNK_MASK));
+        }
+
+        private void put(long node, long min, long max) {
+            for (int i = 0; i < 2; i++) {
+                long offset = (2 * node + i) * Long.BYTES;
+                chunks[(int) (offset >>> CHUNK_LOG2)].putLong((int) (offset & CHUNK_MASK), i == 0 ? min : max);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (MappedByteBuffer buffer : chunks) {
+                buffer.force();
+            }
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import org.apache.tinkerpop.gremlin.process.traversal.Compare;
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.Step;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.TraversalStrategies;
+import org.apache.tinkerpop.gremlin.process.traversal.TraversalStrategy;
+import org.apache.tinkerpop.gremlin.process.traversal.step.filter.HasStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.GraphStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.process.traversal.strategy.AbstractTraversalStrategy;
+import org.apache.tinkerpop.gremlin.structure.Graph;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.softwareheritage.graph.Node;
+import org.webgraph.tinkerpop.structure.WebGraphGraph;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Makes {@code g.V().hasLabel(...)} iterate only the nodes with these labels, listed by the {@link NodeTypeIndex} of
+ * the graph, instead of creating a vertex for every node of the graph and looking up its label.
+ * <p>
+ * The strategy applies to a start {@code V()} without ids directly followed by {@code has} steps, one of which tests
+ * {@code T.label} for equality with or membership in constant labels. The {@code has} steps are kept, so that the
+ * results are the same whether or not the strategy applies. It only applies to the graphs given to
+ * {@link #register(Graph, NodeTypeIndex)}.
+ * <p>
+ * Like the {@code GraphStep} rewrites of other providers, it is a provider optimization, so it sees the {@code has}
+ * steps after {@code V()} once the standard optimizations have reshaped them.
+ */
+public class TypeIndexStrategy extends AbstractTraversalStrategy<TraversalStrategy.ProviderOptimizationStrategy>
+        implements TraversalStrategy.ProviderOptimizationStrategy {
+
+    private static final TypeIndexStrategy INSTANCE = new TypeIndexStrategy();
+    private static final Map<Graph, NodeTypeIndex> INDEXES = new WeakHashMap<>();
+
+    private TypeIndexStrategy() {
+    }
+
+    public static TypeIndexStrategy instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the strategy to the default strategies of {@link WebGraphGraph} and lists the nodes of {@code graph} with
+     * {@code index}. Idempotent.
+     */
+    public static synchronized void register(Graph graph, NodeTypeIndex index) {
+        INDEXES.put(graph, index);
+        TraversalStrategies strategies = TraversalStrategies.GlobalCache.getStrategies(WebGraphGraph.class);
+        if (strategies.getStrategy(TypeIndexStrategy.class).isEmpty()) {
+            TraversalStrategies.GlobalCache.registerStrategies(WebGraphGraph.class,
+                    strategies.clone().addStrategies(INSTANCE));
+        }
+    }
+
+    private static synchronized NodeTypeIndex index(Graph graph) {
+        return INDEXES.get(graph);
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void apply(Traversal.Admin<?, ?> traversal) {
+        Step<?, ?> start = traversal.getStartStep();
+        if (!(start instanceof GraphStep) || !traversal.getGraph().isPresent()) {
+            return;
+        }
+        GraphStep<?, ?> graphStep = (GraphStep<?, ?>) start;
+        if (!graphStep.returnsVertex() || graphStep.getIds().length != 0) {
+            return;
+        }
+        Graph graph = traversal.getGraph().get();
+        NodeTypeIndex index = index(graph);
+        if (index == null) {
+            return;
+        }
+        // with several label tests, iterates the one selecting the fewest nodes
+        Node.Type[] types = null;
+        long count = Long.MAX_VALUE;
+        for (Step<?, ?> step = start.getNextStep(); step instanceof HasStep; step = step.getNextStep()) {
+            for (HasContainer container : ((HasStep<?>) step).getHasContainers()) {
+                Node.Type[] containerTypes = types(container);
+                if (containerTypes == null) {
+                    continue;
+                }
+                long containerCount = 0;
+                for (Node.Type type : containerTypes) {
+                    containerCount += index.count(type);
+                }
+                if (containerCount < count) {
+                    types = containerTypes;
+                    count = containerCount;
+                }
+            }
+        }
+        if (types == null) {
+            return;
+        }
+        Node.Type[] selected = types;
+        ((GraphStep) graphStep).setIteratorSupplier(() -> vertices(graph, index.iterator(selected)));
+    }
+
+    /**
+     * @return the types with the labels accepted by the container, or {@code null} if it is not a label test on
+     * constant labels.
+     */
+    private static Node.Type[] types(HasContainer container) {
+        if (!T.label.getAccessor().equals(container.getKey())) {
+            return null;
+        }
+        Collection<?> labels;
+        if (container.getBiPredicate() == Compare.eq) {
+            labels = Collections.singletonList(container.getValue());
+        } else if (container.getBiPredicate() == Contains.within && container.getValue() instanceof Collection) {
+            labels = (Collection<?>) container.getValue();
+        } else {
+            return null;
+        }
+        Set<Node.Type> res = new LinkedHashSet<>();
+        for (Object label : labels) {
+            if (!(label instanceof String)) {
+                return null;
+            }
+            // a label no node has selects no node
+            Node.Type type = NodeTypeIndex.type((String) label);
+            if (type != null) {
+                res.add(type);
+            }
+        }
+        return res.toArray(new Node.Type[0]);
+    }
+
+    private static Iterator<Vertex> vertices(Graph graph, LongIterator ids) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public Vertex next() {
+                return graph.vertices(ids.nextLong()).next();
+            }
+        };
+    }
+}
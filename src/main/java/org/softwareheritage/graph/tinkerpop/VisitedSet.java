@@ -0,0 +1,127 @@
+package org.softwareheritage.graph.tinkerpop;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Off-heap bitset of visited node ids, indexed by {@code long}.
+ * <p>
+ * The bits live in direct buffers (in chunks, so that graphs with more than 2<sup>31</sup> nodes fit), and every word
+ * that becomes non-zero is recorded, so that {@link #clear()} only resets the touched words instead of the whole set.
+ * Sets are meant to be reused through a {@link Pool}: closing a set clears it and returns it to its pool.
+ */
+public class VisitedSet implements AutoCloseable {
+
+    private static final int CHUNK_WORDS_LOG2 = 27; // 1 GiB per chunk
+    private static final long CHUNK_WORDS = 1L << CHUNK_WORDS_LOG2;
+    private static final long CHUNK_MASK = CHUNK_WORDS - 1;
+
+    private final long size;
+    private final long words;
+    private final LongBuffer[] chunks;
+    private final LongArrayList touched = new LongArrayList();
+    private final Pool pool;
+
+    /**
+     * @param size the number of bits, usually {@code graph.numNodes()}
+     */
+    public VisitedSet(long size) {
+        this(size, null);
+    }
+
+    private VisitedSet(long size, Pool pool) {
+        this.size = size;
+        this.pool = pool;
+        this.words = (size + 63) >>> 6;
+        int chunkCount = (int) ((words + CHUNK_WORDS - 1) >>> CHUNK_WORDS_LOG2);
+        this.chunks = new LongBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long chunkWords = Math.min(CHUNK_WORDS, words - ((long) i << CHUNK_WORDS_LOG2));
+            chunks[i] = ByteBuffer.allocateDirect((int) (chunkWords * Long.BYTES)).asLongBuffer();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean contains(long node) {
+        long word = node >>> 6;
+        return (chunks[(int) (word >>> CHUNK_WORDS_LOG2)].get((int) (word & CHUNK_MASK)) & (1L << node)) != 0;
+    }
+
+    /**
+     * Marks the node as visited.
+     *
+     * @return {@code true} if the node was not visited before.
+     */
+    public boolean add(long node) {
+        long word = node >>> 6;
+        LongBuffer chunk = chunks[(int) (word >>> CHUNK_WORDS_LOG2)];
+        int index = (int) (word & CHUNK_MASK);
+        long bits = chunk.get(index);
+        long mask = 1L << node;
+        if ((bits & mask) != 0) {
+            return false;
+        }
+        if (bits == 0) {
+            touched.add(word);
+        }
+        chunk.put(index, bits | mask);
+        return true;
+    }
+
+    /**
+     * Resets the set in time proportional to the number of touched words.
+     */
+    public void clear() {
+        if (touched.size() > words / 8) {
+            for (LongBuffer chunk : chunks) {
+                for (int i = 0; i < chunk.capacity(); i++) {
+                    chunk.put(i, 0);
+                }
+            }
+        } else {
+            for (int i = 0; i < touched.size(); i++) {
+                long word = touched.getLong(i);
+                chunks[(int) (word >>> CHUNK_WORDS_LOG2)].put((int) (word & CHUNK_MASK), 0);
+            }
+        }
+        touched.clear();
+    }
+
+    /**
+     * Clears the set and returns it to its pool, if any.
+     */
+    @Override
+    public void close() {
+        clear();
+        if (pool != null) {
+            pool.sets.add(this);
+        }
+    }
+
+    /**
+     * Thread-safe pool of visited sets of the same size.
+     */
+    public static class Pool {
+        private final long size;
+        private final Queue<VisitedSet> sets = new ConcurrentLinkedQueue<>();
+
+        public Pool(long size) {
+            this.size = size;
+        }
+
+        /**
+         * @return an empty set, to be {@link VisitedSet#close() closed} after use.
+         */
+        public VisitedSet acquire() {
+            VisitedSet set = sets.poll();
+            return set != null ? set : new VisitedSet(size, this);
+        }
+    }
+}